@@ -0,0 +1,229 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Downloads Maven artifacts into a local repository using a bounded pool of threads. Artifacts are
+ * downloaded to a temporary file and then moved into place, so other processes never see a
+ * partially written artifact, and concurrent requests for the same artifact share one download.
+ *
+ * <p>This is used to prefetch everything a resolution will need, in parallel, before handing off
+ * to Aether (which downloads one artifact at a time). Aether treats artifacts it finds in the
+ * local repository without download metadata as locally installed, and uses them as is.</p>
+ */
+public class ArtifactFetcher {
+
+  /** The URL of Maven Central. */
+  public static final String CENTRAL = "https://repo1.maven.org/maven2/";
+
+  /** Returns the path of {@code id} relative to the root of a Maven repository. */
+  public static String repoPath (RepoId id) {
+    return id.groupId.replace('.', '/') + "/" + id.artifactId + "/" + id.version + "/" +
+      id.artifactId + "-" + id.version + (id.classifier == null ? "" : "-" + id.classifier) +
+      "." + extension(id.kind);
+  }
+
+  /** Returns the file extension used for artifacts of type {@code kind}. */
+  public static String extension (String kind) {
+    switch (kind) {
+    case "bundle":
+    case "maven-plugin":
+    case "test-jar":
+    case "ejb": return "jar";
+    default: return kind;
+    }
+  }
+
+  public ArtifactFetcher (Path m2repo, List<String> repos, int threads) {
+    this(m2repo, repos, threads, new RepoHealth(null, 0, 0));
+  }
+
+  /**
+   * @param m2repo the local repository into which artifacts are downloaded.
+   * @param repos the remote repositories (URLs, or {@code central}), in search order.
+   * @param threads the maximum number of concurrent downloads.
+   * @param health used to skip failing repositories and known misses.
+   */
+  public ArtifactFetcher (Path m2repo, List<String> repos, int threads, RepoHealth health) {
+    _m2repo = m2repo;
+    _health = health;
+    for (String repo : repos) {
+      String url = repo.equals("central") ? CENTRAL : repo;
+      _repos.add(url.endsWith("/") ? url : url + "/");
+    }
+    _exec = new PriorityExecutor(threads, "pacman-fetcher");
+  }
+
+  /** Returns the path at which {@code id} lives in our local repository. */
+  public Path localPath (RepoId id) {
+    return _m2repo.resolve(repoPath(id));
+  }
+
+  /** Fetches {@code id} into the local repository, if it's not already there. The returned future
+    * completes with the artifact's local path, or null if it could not be found in any remote
+    * repository. */
+  public CompletableFuture<Path> fetch (RepoId id) {
+    return fetch(id, 0);
+  }
+
+  /** Fetches {@code id} as {@link #fetch(RepoId)} does, but queues the download (if one is needed)
+    * ahead of any queued downloads with lower {@code priority}. */
+  public CompletableFuture<Path> fetch (RepoId id, int priority) {
+    Path path = localPath(id);
+    if (Files.exists(path)) return CompletableFuture.completedFuture(path);
+    // SNAPSHOT artifacts are stored remotely with timestamped names, so leave those to Aether
+    if (id.version.endsWith("-SNAPSHOT")) return CompletableFuture.completedFuture(null);
+    CompletableFuture<Path> result = new CompletableFuture<>();
+    CompletableFuture<Path> inflight = _inflight.putIfAbsent(id, result);
+    if (inflight != null) return inflight;
+    _exec.execute(priority, () -> {
+      try { result.complete(download(id, path)); }
+      catch (Throwable t) { result.completeExceptionally(t); }
+      finally { _inflight.remove(id, result); }
+    });
+    return result;
+  }
+
+  /** Downloads {@code ids}, their transitive depends, and the POMs needed to determine those
+    * depends, and waits for all of the downloads to complete. Failures are logged and otherwise
+    * ignored, as whatever resolution follows will report anything that is actually missing. */
+  public void prefetch (List<RepoId> ids) {
+    prefetch(ids, 0);
+  }
+
+  /** Prefetches {@code ids} as {@link #prefetch(List)} does, with all downloads queued with
+    * {@code priority}. */
+  public void prefetch (List<RepoId> ids, int priority) {
+    List<RepoId> all;
+    try {
+      all = new PomResolver(pomId -> fetch(pomId, priority), false).resolve(ids);
+    } catch (IOException e) {
+      Log.log("Prefetch failed", "ids", ids, e); // can't happen in non-strict mode, but...
+      return;
+    }
+    List<CompletableFuture<Path>> fetches = new ArrayList<>();
+    for (RepoId id : all) fetches.add(fetch(id, priority));
+    for (CompletableFuture<Path> fetch : fetches) {
+      try { fetch.join(); }
+      catch (RuntimeException e) {} // already logged
+    }
+    _health.save();
+  }
+
+  private Path download (RepoId id, Path path) {
+    // we may have raced with a just completed download of this same artifact
+    if (Files.exists(path)) return path;
+    String rpath = repoPath(id);
+    for (String repo : _repos) {
+      if (!_health.isAvailable(repo) || _health.isKnownMissing(repo, rpath)) continue;
+      try {
+        byte[] sha1 = readSha1(new URL(repo + rpath + ".sha1"));
+        URLConnection conn = open(new URL(repo + rpath));
+        if (conn == null) {
+          _health.noteMissing(repo, rpath);
+          continue;
+        }
+        Files.createDirectories(path.getParent());
+        Path temp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".part");
+        try {
+          MessageDigest md = MessageDigest.getInstance("SHA-1");
+          try (InputStream in = conn.getInputStream();
+               OutputStream out = Files.newOutputStream(temp)) {
+            byte[] buf = new byte[16*1024];
+            for (int read; (read = in.read(buf)) > 0; ) {
+              md.update(buf, 0, read);
+              out.write(buf, 0, read);
+            }
+          }
+          _health.noteSuccess(repo);
+          if (sha1 != null && !MessageDigest.isEqual(sha1, md.digest())) {
+            Log.log("Checksum mismatch, ignoring download", "url", repo + rpath);
+            continue;
+          }
+          Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                     StandardCopyOption.ATOMIC_MOVE);
+          return path;
+        } finally {
+          Files.deleteIfExists(temp);
+        }
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e); // SHA-1 is always available
+      } catch (IOException e) {
+        Log.log("Download failed", "url", repo + rpath, "error", e);
+        _health.noteFailure(repo);
+      }
+    }
+    return null;
+  }
+
+  // returns null if the resource does not exist
+  private static URLConnection open (URL url) throws IOException {
+    URLConnection conn = url.openConnection();
+    conn.setConnectTimeout(Props.connectTimeout*1000);
+    conn.setReadTimeout(Props.readTimeout*1000);
+    try {
+      if (conn instanceof HttpURLConnection) {
+        int code = ((HttpURLConnection)conn).getResponseCode();
+        if (code == HttpURLConnection.HTTP_NOT_FOUND) return null;
+        if (code != HttpURLConnection.HTTP_OK) throw new IOException("HTTP " + code);
+      } else conn.connect();
+      return conn;
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+  }
+
+  // returns null if there is no checksum file
+  private static byte[] readSha1 (URL url) throws IOException {
+    URLConnection conn = open(url);
+    if (conn == null) return null;
+    String text;
+    try (InputStream in = conn.getInputStream()) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[256];
+      for (int read; (read = in.read(buf)) > 0; ) out.write(buf, 0, read);
+      text = new String(out.toByteArray(), StandardCharsets.US_ASCII).trim();
+    }
+    // checksum files sometimes contain the file name after the checksum
+    int space = text.indexOf(' ');
+    if (space > 0) text = text.substring(0, space);
+    if (text.length() != 40) return null;
+    byte[] sha1 = new byte[20];
+    try {
+      for (int ii = 0; ii < sha1.length; ii++) {
+        sha1[ii] = (byte)Integer.parseInt(text.substring(2*ii, 2*ii+2), 16);
+      }
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    return sha1;
+  }
+
+  private final Path _m2repo;
+  private final RepoHealth _health;
+  private final List<String> _repos = new ArrayList<>();
+  private final PriorityExecutor _exec;
+  private final Map<RepoId,CompletableFuture<Path>> _inflight = new ConcurrentHashMap<>();
+}
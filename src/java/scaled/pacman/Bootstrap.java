@@ -12,6 +12,7 @@ import java.lang.reflect.Method;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -79,6 +80,12 @@ public class Bootstrap {
       pacmanJar = runtimeJar;
     }
 
+    // if CDS is requested and supported, we fork so that pacman's classes can be loaded from a
+    // shared archive; the archive is created by the first such run and reused thereafter
+    if (useCDS(pargs, pacmanJar)) {
+      pargs.jvmArgs.addAll(cdsArgs(scaledHome, pacmanJar, mfetcherJar));
+    }
+
     // if we have any JVM arguments, we need to fork, otherwise we can reuse this JVM
     if (pargs.jvmArgs.isEmpty()) {
       // set any requested system properties
@@ -128,10 +135,57 @@ public class Bootstrap {
       command.addAll(pargs.sysPropArgs);
       command.add(PACMAN_CLASS);
       command.addAll(pargs.appArgs);
-      new ProcessBuilder(command).inheritIO().start();
+      debug("Launching Pacman in new JVM: " + command);
+      Process proc = new ProcessBuilder(command).inheritIO().start();
+      System.exit(proc.waitFor());
     }
   }
 
+  static boolean useCDS (Args pargs, Path pacmanJar) {
+    boolean wanted = Boolean.getBoolean("pacman.cds") ||
+      pargs.sysPropArgs.contains("-Dpacman.cds") || pargs.sysPropArgs.contains("-Dpacman.cds=true");
+    if (!wanted) return false;
+    // dynamic CDS archives require JDK 13+, and we only support them on Linux for now
+    if (!System.getProperty("os.name").startsWith("Linux")) return false;
+    if (javaFeatureVersion() < 13) { debug("Not using CDS, JDK 13+ required."); return false; }
+    // CDS cannot archive classes loaded from a directory
+    return !Files.isDirectory(pacmanJar);
+  }
+
+  static List<String> cdsArgs (Path scaledHome, Path pacmanJar, Path mfetcherJar)
+  throws IOException {
+    Path cdsDir = scaledHome.resolve("CDS");
+    Files.createDirectories(cdsDir);
+    // name our archive based on the jars it contains so that it's regenerated when they change
+    String stamp = Long.toHexString(jarStamp(pacmanJar) * 31 + jarStamp(mfetcherJar));
+    Path archive = cdsDir.resolve("pacman-" + stamp + ".jsa");
+    List<String> args = new ArrayList<>();
+    if (Files.exists(archive)) {
+      debug("Using CDS archive: " + archive);
+      args.add("-XX:SharedArchiveFile=" + archive);
+    } else {
+      // delete any stale archives, then create a new archive when the forked JVM exits
+      try (DirectoryStream<Path> stale = Files.newDirectoryStream(cdsDir, "pacman-*.jsa")) {
+        for (Path path : stale) Files.delete(path);
+      }
+      debug("Creating CDS archive: " + archive);
+      args.add("-XX:ArchiveClassesAtExit=" + archive);
+    }
+    return args;
+  }
+
+  static long jarStamp (Path jar) throws IOException {
+    return (jar.toString().hashCode() * 31L + Files.size(jar)) * 31L +
+      Files.getLastModifiedTime(jar).toMillis();
+  }
+
+  static int javaFeatureVersion () {
+    // 1.8 for Java 8 and earlier, 9, 10, 11, etc. thereafter
+    String[] bits = System.getProperty("java.specification.version").split("\\.");
+    try { return Integer.parseInt(bits[0].equals("1") ? bits[1] : bits[0]); }
+    catch (Exception e) { return 0; }
+  }
+
   static Path findJavaHome () {
     Path javaHome = Paths.get(System.getProperty("java.home"));
     // java.home may be JDK_HOME/jre
@@ -0,0 +1,54 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Manages the dynamic Class Data Sharing (AppCDS) archives used to speed up launches. An archive
+ * is keyed on the classpath it covers (and the size and timestamp of each entry therein), so that
+ * a stale archive is never used. {@link Bootstrap} maintains the archive for pacman itself; this
+ * class handles archives for {@code spam run} targets.
+ */
+public class CDS {
+
+  /** Returns true if CDS archives are supported by the running JVM. We require JDK 13+ for dynamic
+    * archives and presently only enable them on Linux. */
+  public static boolean isSupported () {
+    return Props.osName.startsWith("linux") && Bootstrap.javaFeatureVersion() >= 13;
+  }
+
+  /** Returns true if {@code classpath} can be covered by a CDS archive. Archives can only contain
+    * classes loaded from jar files, not directories. */
+  public static boolean canArchive (List<Path> classpath) {
+    for (Path path : classpath) if (!Files.isRegularFile(path)) return false;
+    return true;
+  }
+
+  /** Returns the JVM arguments needed to use (or create, if it does not yet exist) the archive for
+    * {@code classpath}. Stale archives for the same classpath are deleted once they are older
+    * than {@link Filez#STALE_GRACE_MILLIS}.
+    * @param dir the directory in which archives are stored.
+    * @param prefix a prefix which identifies the archives of a particular kind. */
+  public static List<String> jvmArgs (Path dir, String prefix, List<Path> classpath)
+  throws IOException {
+    // the first part of the name identifies the classpath, the second its contents
+    String cpkey = prefix + "-" + Filez.hashPaths(classpath, false);
+    Path archive = dir.resolve(cpkey + "-" + Filez.hashPaths(classpath, true) + ".jsa");
+    List<String> args = new ArrayList<>();
+    if (Files.exists(archive)) args.add("-XX:SharedArchiveFile=" + archive);
+    else {
+      // recently written archives are spared, as a concurrent launch may be about to map them
+      Filez.deleteStale(dir, cpkey + "-*.jsa");
+      Log.log("Creating CDS archive " + archive.getFileName() + " on exit.");
+      args.add("-XX:ArchiveClassesAtExit=" + archive);
+    }
+    return args;
+  }
+}
@@ -0,0 +1,128 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Summarizes the signature of a compiled class: its name, supertypes and every non-private field
+ * and method (with generic signatures and constant values). Code compiled against a class need not
+ * be recompiled when the class is recompiled with an unchanged signature. {@link PackageBuilder}
+ * uses this to decide whether an incremental build is safe. Private members are omitted, as they
+ * are only visible to code in the same source file, which is always recompiled along with them.
+ */
+public class ClassApi {
+
+  /** The name of the class, in internal form (e.g. {@code foo/bar/Baz$Inner}). */
+  public final String name;
+
+  /** The name of the source file from which the class was compiled, or null if not recorded. */
+  public final String sourceFile;
+
+  /** A canonical description of the class's signature; equal strings mean equal signatures. */
+  public final String signature;
+
+  /** Reads the signature of the class file at {@code path}. */
+  public static ClassApi read (Path path) throws IOException {
+    return read(Files.readAllBytes(path));
+  }
+
+  /** Reads the signature of the class file in {@code bytes}. */
+  public static ClassApi read (byte[] bytes) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    if (in.readInt() != 0xCAFEBABE) throw new IOException("Not a class file");
+    in.readUnsignedShort(); // minor version
+    in.readUnsignedShort(); // major version
+
+    // read the constant pool, keeping only what we need to describe the class's signature
+    int count = in.readUnsignedShort();
+    Object[] pool = new Object[count];
+    int[] refs = new int[count];
+    for (int ii = 1; ii < count; ii++) {
+      int tag = in.readUnsignedByte();
+      switch (tag) {
+      case 1: pool[ii] = in.readUTF(); break;
+      case 3: pool[ii] = in.readInt(); break;
+      case 4: pool[ii] = in.readFloat(); break;
+      case 5: pool[ii] = in.readLong(); ii++; break; // longs and doubles take two slots
+      case 6: pool[ii] = in.readDouble(); ii++; break;
+      case 7: case 8: case 16: case 19: case 20: refs[ii] = in.readUnsignedShort(); break;
+      case 15: in.skipBytes(3); break;
+      case 9: case 10: case 11: case 12: case 17: case 18: in.skipBytes(4); break;
+      default: throw new IOException("Unknown constant pool tag " + tag);
+      }
+    }
+
+    StringBuilder sig = new StringBuilder();
+    int access = in.readUnsignedShort();
+    String name = (String)pool[refs[in.readUnsignedShort()]];
+    int superIdx = in.readUnsignedShort();
+    sig.append("class ").append(access & ~ACC_SUPER).append(' ').append(name);
+    if (superIdx != 0) sig.append(" extends ").append(pool[refs[superIdx]]);
+    for (int ii = 0, icount = in.readUnsignedShort(); ii < icount; ii++) {
+      sig.append(ii == 0 ? " implements " : ",").append(pool[refs[in.readUnsignedShort()]]);
+    }
+    sig.append('\n');
+
+    // members are sorted, so that reordering them in the source does not change the signature
+    List<String> members = new ArrayList<>();
+    for (int kind = 0; kind < 2; kind++) {
+      for (int ii = 0, mcount = in.readUnsignedShort(); ii < mcount; ii++) {
+        int macc = in.readUnsignedShort();
+        String mname = (String)pool[in.readUnsignedShort()];
+        String mdesc = (String)pool[in.readUnsignedShort()];
+        StringBuilder msig = new StringBuilder(kind == 0 ? "field " : "method ");
+        msig.append(macc).append(' ').append(mname).append(' ').append(mdesc);
+        for (int aa = 0, acount = in.readUnsignedShort(); aa < acount; aa++) {
+          String aname = (String)pool[in.readUnsignedShort()];
+          int alen = in.readInt();
+          // constant values are inlined into client code and generic signatures affect how it
+          // compiles, so both are part of the signature; other attributes are not
+          if ("ConstantValue".equals(aname)) {
+            int cidx = in.readUnsignedShort();
+            Object value = (pool[cidx] != null) ? pool[cidx] : pool[refs[cidx]];
+            msig.append(" = ").append(value);
+          } else if ("Signature".equals(aname)) {
+            msig.append(' ').append(pool[in.readUnsignedShort()]);
+          } else in.skipBytes(alen);
+        }
+        if ((macc & ACC_PRIVATE) == 0) members.add(msig.toString());
+      }
+    }
+    Collections.sort(members);
+    for (String member : members) sig.append(member).append('\n');
+
+    String sourceFile = null;
+    for (int aa = 0, acount = in.readUnsignedShort(); aa < acount; aa++) {
+      String aname = (String)pool[in.readUnsignedShort()];
+      int alen = in.readInt();
+      if ("SourceFile".equals(aname)) sourceFile = (String)pool[in.readUnsignedShort()];
+      else if ("Signature".equals(aname)) {
+        sig.append("signature ").append(pool[in.readUnsignedShort()]).append('\n');
+      }
+      else in.skipBytes(alen);
+    }
+    return new ClassApi(name, sourceFile, sig.toString());
+  }
+
+  private ClassApi (String name, String sourceFile, String signature) {
+    this.name = name;
+    this.sourceFile = sourceFile;
+    this.signature = signature;
+  }
+
+  @Override public String toString () {
+    return signature;
+  }
+
+  private static final int ACC_PRIVATE = 0x0002, ACC_SUPER = 0x0020;
+}
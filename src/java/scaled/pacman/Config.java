@@ -50,6 +50,18 @@ public class Config {
     public String parse (String text) { return text; }
   };
 
+  /** Like {@link #StringP}, but an unbound key yields the empty string rather than an error. */
+  public static Parser<String> OptStringP = new Parser<String>() {
+    public String parse (String text) { return text; }
+    public Optional<String> zero () {
+      return Optional.of("");
+    }
+    // the zero is replaced by the first binding, but a key can still only be bound once
+    public String accum (String key, String oval, String nval) {
+      return oval.isEmpty() ? nval : super.accum(key, oval, nval);
+    }
+  };
+
   public static Parser<List<String>> WordsP = new ListParser<String>() {
     public List<String> parse (String text) { return Arrays.asList(text.split(" ")); }
   };
@@ -100,6 +112,13 @@ public class Config {
       "Missing or invalid binding for '%s' [data=%s, errors=%s]", key, vals, errors));
   }
 
+  /** Resolves the binding for {@code key}, or returns null if it is unbound. As with {@link
+    * #resolve}, binding a key more than once is reported as an error; the first binding is used. */
+  public String resolveOptional (String key) {
+    String val = resolve(key, OptStringP);
+    return val.isEmpty() ? null : val;
+  }
+
   public List<Depend> resolveDepends () {
     List<Depend> depends = resolve("depend", new DependListP(Depend.Scope.MAIN));
     depends.addAll(resolve("execdep", new DependListP(Depend.Scope.EXEC)));
@@ -7,6 +7,9 @@ package scaled.pacman;
 import java.io.PrintStream;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -56,6 +59,22 @@ public class Depends {
 
     /** Returns the classloader for the specified system dependency. */
     ClassLoader systemLoader (Path path);
+
+    /** Returns a loader for the binary depends {@code paths} which is shared by all modules whose
+      * binary depends are exactly {@code paths}, or null if loaders should not be shared (the
+      * default, see {@link SharedLoader}).
+      * @param systemPaths the system depends to which the shared loader should delegate. */
+    default SharedLoader sharedLoader (List<Path> paths, List<Path> systemPaths) {
+      return null;
+    }
+
+    /** Returns previously created shared loaders (see {@link #sharedLoader}) whose paths are all
+      * contained in {@code paths}, and which have no paths in common, or an empty list if loaders
+      * are not shared. A module whose binary depends cannot be shared as a whole delegates to these
+      * for the depends they cover, and loads the rest itself. */
+    default List<SharedLoader> sharedSubsets (List<Path> paths) {
+      return Collections.emptyList();
+    }
   }
 
   /** The module whose dependencies we contain. */
@@ -96,19 +115,14 @@ public class Depends {
     this.missingDeps = new ArrayList<>();
     this.ignoreModuleJar = resolve.ignoreModuleJar();
 
-    List<RepoId> mvnIds = new ArrayList<>();
+    List<RepoId> mvnIds = module.mavenDepends();
     List<SystemId> sysIds = new ArrayList<>();
     for (Depend dep : module.depends) {
       if (dep.scope == Depend.Scope.EXEC) continue; // omit exec depends
-      if (dep.id instanceof RepoId) mvnIds.add((RepoId)dep.id);
+      if (dep.id instanceof RepoId) continue; // resolved below
       else if (dep.id instanceof SystemId) sysIds.add((SystemId)dep.id);
       else {
-        Source depsrc = (Source)dep.id;
-        // if we depend on a module in our same package, resolve it specially; this ensures that
-        // when we're building a package prior to installing it, intrapackage depends are properly
-        // resolved even though the package itself is not yet registered with this repo
-        Optional<Module> dmod = !module.isSibling(depsrc) ? resolve.moduleBySource(depsrc) :
-          Optional.ofNullable(module.pkg.module(depsrc.module()));
+        Optional<Module> dmod = moduleDepend(module, (Source)dep.id, resolve);
         if (dmod.isPresent()) moduleDeps.add(dmod.get().depends(resolve));
         else missingDeps.add(new Depend.MissingId(dep.id));
       }
@@ -116,21 +130,23 @@ public class Depends {
 
     // compute the transitive set of binary and system depends already handled by our module
     // dependencies; we'll omit those from our deps because we want to "inherit" them
-    Set<Path> haveBinaryDeps = new HashSet<>();
-    Set<String> haveSystemDeps = new HashSet<>();
-    for (Depends dep : moduleDeps) dep.accumDeps(haveBinaryDeps, haveSystemDeps);
+    BitSet haveBinaryDeps = new BitSet(), haveSystemDeps = new BitSet();
+    for (Depends dep : moduleDeps) {
+      haveBinaryDeps.or(dep._binaryClosure);
+      haveSystemDeps.or(dep._systemClosure);
+    }
 
     // resolve our Maven depends; split them into system and (private) bindeps
     if (!mvnIds.isEmpty()) {
-      for (Map.Entry<RepoId,Path> entry : resolve.resolve(mvnIds).entrySet()) {
+      for (Map.Entry<RepoId,Path> entry : LockFile.resolve(module, mvnIds, resolve).entrySet()) {
         RepoId id = entry.getKey();
         Path path = entry.getValue();
         if (path == null) missingDeps.add(new Depend.MissingId(id));
         else if (resolve.isSystem(id)) {
-          if (!haveSystemDeps.contains(id.stableId())) systemDeps.put(path, id);
+          if (!haveSystemDeps.get(STABLE_IDS.intern(id.stableId()))) systemDeps.put(path, id);
           else filteredDeps.put(path, id);
         }
-        else if (!haveBinaryDeps.contains(path)) binaryDeps.put(path, id);
+        else if (!haveBinaryDeps.get(PATHS.intern(path))) binaryDeps.put(path, id);
         else filteredDeps.put(path, id);
       }
     }
@@ -138,29 +154,136 @@ public class Depends {
     // resolve our System depends; system depends are always system
     for (SystemId id : sysIds) try {
       Path path = resolve.resolve(id);
-      if (!haveSystemDeps.contains(id.stableId())) systemDeps.put(path, id);
+      if (!haveSystemDeps.get(STABLE_IDS.intern(id.stableId()))) systemDeps.put(path, id);
       else filteredDeps.put(path, id);
     } catch (IllegalArgumentException e) {
       missingDeps.add(new Depend.MissingId(id));
     }
+
+    // our closures are those of our module depends plus our own depends
+    _binaryClosure = haveBinaryDeps;
+    for (Path path : binaryDeps.keySet()) _binaryClosure.set(PATHS.intern(path));
+    _systemClosure = haveSystemDeps;
+    for (Depend.Id id : systemDeps.values()) _systemClosure.set(STABLE_IDS.intern(id.stableId()));
+
+    // precompute our transitive classpath and flattened ids, in the order of a depth first
+    // traversal of the module graph, skipping anything already seen; merging our module depends'
+    // precomputed orders yields the same result as doing the traversal
+    List<Module> cpMods = new ArrayList<>();
+    Set<Source> seenMods = new HashSet<>();
+    seenMods.add(mod.source);
+    cpMods.add(mod);
+    BitSet seenPaths = new BitSet();
+    int[] cpOrder = new int[16];
+    int cpSize = 0;
+    cpOrder[cpSize++] = -1;
+    for (Path path : binaryDeps.keySet()) cpOrder = addPath(cpOrder, cpSize++, path, seenPaths);
+    for (Path path : systemDeps.keySet()) cpOrder = addPath(cpOrder, cpSize++, path, seenPaths);
+    Set<Depend.Id> flatIds = new LinkedHashSet<>();
+    flatIds.add(mod.source);
+    flatIds.addAll(binaryDeps.values());
+    flatIds.addAll(systemDeps.values());
+    flatIds.addAll(missingDeps); // we were unable to resolve them, but we can still report them
+    for (Depends dep : moduleDeps) {
+      for (int ii = 0; ii < dep._cpSize; ii++) {
+        int entry = dep._cpOrder[ii];
+        if (entry >= 0) {
+          if (seenPaths.get(entry)) continue;
+          seenPaths.set(entry);
+        } else {
+          Module cpMod = dep._cpMods[-entry-1];
+          if (!seenMods.add(cpMod.source)) continue;
+          cpMods.add(cpMod);
+          entry = -cpMods.size();
+        }
+        if (cpSize == cpOrder.length) cpOrder = Arrays.copyOf(cpOrder, cpSize*2);
+        cpOrder[cpSize++] = entry;
+      }
+      flatIds.addAll(Arrays.asList(dep._flatIds));
+    }
+    _cpOrder = cpOrder;
+    _cpSize = cpSize;
+    _cpMods = cpMods.toArray(new Module[cpMods.size()]);
+    _flatIds = flatIds.toArray(new Depend.Id[flatIds.size()]);
+
+    // our own depends' versions take precedence, then those of our module depends, in order
+    Map<String,String> versions = new HashMap<>();
+    for (Depend.Id id : binaryDeps.values()) {
+      if (id != null) versions.putIfAbsent(id.stableId(), id.version());
+    }
+    for (Depend.Id id : systemDeps.values()) {
+      if (id != null) versions.putIfAbsent(id.stableId(), id.version());
+    }
+    for (Depends dep : moduleDeps) {
+      for (Map.Entry<String,String> entry : dep._versions.entrySet()) {
+        versions.putIfAbsent(entry.getKey(), entry.getValue());
+      }
+    }
+    _versions = Collections.unmodifiableMap(versions);
+  }
+
+  /** Returns the module identified by {@code depsrc}, a module depend of {@code module}. */
+  public static Optional<Module> moduleDepend (Module module, Source depsrc, Resolver resolve) {
+    // if we depend on a module in our same package, resolve it specially; this ensures that when
+    // we're building a package prior to installing it, intrapackage depends are properly resolved
+    // even though the package itself is not yet registered with this repo
+    return !module.isSibling(depsrc) ? resolve.moduleBySource(depsrc) :
+      Optional.ofNullable(module.pkg.module(depsrc.module()));
+  }
+
+  /** Returns the packages provided by this module, its binary and system depends, and
+    * (transitively) its module depends. See {@link PackageIndex}. */
+  public synchronized Set<String> exportedPackages () {
+    if (_exported == null) {
+      Set<String> pkgs = new HashSet<>(PackageIndex.forPath(mod.classpath(ignoreModuleJar)));
+      for (Path path : binaryDeps.keySet()) pkgs.addAll(PackageIndex.forPath(path));
+      for (Path path : systemDeps.keySet()) pkgs.addAll(PackageIndex.forPath(path));
+      for (Depends dep : moduleDeps) pkgs.addAll(dep.exportedPackages());
+      _exported = pkgs;
+    }
+    return _exported;
+  }
+
+  /** Discards our cached exported packages, which must be recomputed when the classes of our
+    * module (or of one of its module depends) change. */
+  public synchronized void invalidateExports () {
+    _exported = null;
   }
 
   public void accumDeps (Set<Path> binary, Set<String> system) {
-    binary.addAll(binaryDeps.keySet());
-    for (Depend.Id sdep : systemDeps.values()) system.add(sdep.stableId());
-    for (Depends dep : moduleDeps) dep.accumDeps(binary, system);
+    for (int id = _binaryClosure.nextSetBit(0); id >= 0; id = _binaryClosure.nextSetBit(id+1)) {
+      binary.add(PATHS.get(id));
+    }
+    for (int id = _systemClosure.nextSetBit(0); id >= 0; id = _systemClosure.nextSetBit(id+1)) {
+      system.add(STABLE_IDS.get(id));
+    }
   }
 
   public List<Path> classpath () {
-    return new ArrayList<>(buildClasspath(new LinkedHashSet<>(), true));
+    return buildClasspath(0);
   }
 
   public List<Path> dependClasspath () {
-    return new ArrayList<>(buildClasspath(new LinkedHashSet<>(), false));
+    return buildClasspath(1); // skip our own classpath
   }
 
   public List<Depend.Id> flatten () {
-    return new ArrayList<>(buildFlatIds(new LinkedHashSet<>(), false));
+    // skip our own source
+    return new ArrayList<>(Arrays.asList(_flatIds).subList(1, _flatIds.length));
+  }
+
+  /** Returns true if this module and its transitive depends can be loaded by a single (flat)
+    * classloader. This is the case if none of its depends are missing and no artifact appears in
+    * the transitive depends in more than one version. */
+  public boolean isFlattenable () {
+    Map<String,String> versions = new HashMap<>();
+    for (Depend.Id id : flatten()) {
+      if (id == null) continue;
+      if (id instanceof Depend.MissingId) return false;
+      String overs = versions.put(id.stableId(), id.version());
+      if (overs != null && !overs.equals(id.version())) return false;
+    }
+    return true;
   }
 
   /**
@@ -168,17 +291,14 @@ public class Depends {
    * set, or null if it does not exist therein.
    */
   public String findVersion (String stableId) {
-    for (Depend.Id dep : binaryDeps.values()) {
-      if (dep.stableId().equals(stableId)) return dep.version();
-    }
-    for (Depend.Id dep : systemDeps.values()) {
-      if (dep.stableId().equals(stableId)) return dep.version();
-    }
-    for (Depends mdeps : moduleDeps) {
-      String version = mdeps.findVersion(stableId);
-      if (version != null) return version;
-    }
-    return null;
+    return _versions.get(stableId);
+  }
+
+  /** Returns a mapping from stable id to version for every binary and system depend in this
+    * module's transitive dependency set. Where a depend appears in more than one version, the
+    * version is the one returned by {@link #findVersion}. */
+  public Map<String,String> versions () {
+    return _versions;
   }
 
   public void dump (PrintStream out, String indent, Set<Source> seen) {
@@ -195,26 +315,42 @@ public class Depends {
     }
   }
 
-  private Set<Path> buildClasspath (Set<Path> into, boolean self) {
-    Path modpath = mod.classpath(ignoreModuleJar);
-    if (!into.contains(modpath)) {
-      if (self) into.add(modpath);
-      into.addAll(binaryDeps.keySet());
-      into.addAll(systemDeps.keySet());
-      for (Depends dep : moduleDeps) dep.buildClasspath(into, true);
+  private List<Path> buildClasspath (int start) {
+    List<Path> cp = new ArrayList<>(_cpSize);
+    for (int ii = start; ii < _cpSize; ii++) {
+      int entry = _cpOrder[ii];
+      // module classpaths are resolved now, as they depend on whether module.jar exists
+      cp.add(entry >= 0 ? PATHS.get(entry) : _cpMods[-entry-1].classpath(ignoreModuleJar));
     }
-    return into;
+    return cp;
   }
 
-  private Set<Depend.Id> buildFlatIds (Set<Depend.Id> into, boolean self) {
-    if (!into.contains(mod.source)) {
-      if (self) into.add(mod.source);
-      into.addAll(binaryDeps.values());
-      into.addAll(systemDeps.values());
-      // we were unable to resolve them, but we can still report them
-      into.addAll(missingDeps);
-      for (Depends dep : moduleDeps) dep.buildFlatIds(into, true);
-    }
-    return into;
+  private static int[] addPath (int[] order, int idx, Path path, BitSet seen) {
+    int id = PATHS.intern(path);
+    seen.set(id);
+    if (idx == order.length) order = Arrays.copyOf(order, idx*2);
+    order[idx] = id;
+    return order;
   }
+
+  private Set<String> _exported;
+
+  // the transitive closure of our binary depends (as interned paths) and system depends (as
+  // interned stable ids), including those of our module depends
+  private final BitSet _binaryClosure, _systemClosure;
+
+  // our transitive classpath: non-negative entries are interned paths, negative entries are
+  // modules (entry -n is _cpMods[n-1]); only the first _cpSize entries are used
+  private final int[] _cpOrder;
+  private final int _cpSize;
+  private final Module[] _cpMods;
+
+  // our transitive flattened ids, starting with our own source
+  private final Depend.Id[] _flatIds;
+
+  // the version of each binary and system depend in our transitive dependency set
+  private final Map<String,String> _versions;
+
+  private static final Interner<Path> PATHS = new Interner<>();
+  private static final Interner<String> STABLE_IDS = new Interner<>();
 }
@@ -29,7 +29,20 @@ public class Exec {
     }
 
     public List<String> output () throws IOException {
+      return readLines(_pb.start());
+    }
+
+    /** Returns the output of the process, once it has exited with {@code exitCode}.
+      * @throws IOException with {@code onError} as its message, if it exits with any other code. */
+    public List<String> output (int exitCode, String onError) throws IOException {
       Process p = _pb.start();
+      List<String> output = readLines(p);
+      try { if (p.waitFor() != exitCode) throw new IOException(onError); }
+      catch (InterruptedException e) { throw new IOException("Process.waitFor() interrupted"); }
+      return output;
+    }
+
+    private static List<String> readLines (Process p) throws IOException {
       BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
       List<String> output = new ArrayList<>();
       String line;
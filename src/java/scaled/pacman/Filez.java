@@ -6,12 +6,19 @@ package scaled.pacman;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 
 /** File utilities. */
 public class Filez {
@@ -76,4 +83,53 @@ public class Filez {
     });
     return sawNewer[0];
   }
+
+  /** Files must be unmodified for this long before {@link #deleteStale} will delete them. */
+  public static final long STALE_GRACE_MILLIS = 10*60*1000L;
+
+  /** Deletes the files in {@code dir} that match {@code glob} and have not been modified in the
+    * last {@link #STALE_GRACE_MILLIS}. Recently modified files are kept because a concurrent
+    * launch may have just created them, or be about to use them. Files which vanish or cannot be
+    * deleted are skipped. */
+  public static void deleteStale (Path dir, String glob) throws IOException {
+    long cutoff = System.currentTimeMillis() - STALE_GRACE_MILLIS;
+    try (DirectoryStream<Path> paths = Files.newDirectoryStream(dir, glob)) {
+      for (Path path : paths) {
+        try {
+          if (Files.getLastModifiedTime(path).toMillis() < cutoff) Files.delete(path);
+        } catch (NoSuchFileException nsfe) {
+          // another launch deleted it first, no problem
+        } catch (IOException ioe) {
+          Log.log("Unable to delete stale file " + path + ": " + ioe);
+        }
+      }
+    }
+  }
+
+  /** Returns a short hex hash of {@code paths}. If {@code stamps} is false, the hash covers only
+    * the path names, otherwise it covers the size and modification time of each file. */
+  public static String hashPaths (List<Path> paths, boolean stamps) throws IOException {
+    List<String> keys = new ArrayList<>();
+    for (Path path : paths) keys.add(stamps ? (Files.size(path) + ":" +
+                                               Files.getLastModifiedTime(path).toMillis()) :
+                                     path.toString());
+    return hash(keys);
+  }
+
+  /** Returns a short hex hash of {@code keys}. */
+  public static String hash (List<String> keys) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      for (String key : keys) {
+        digest.update(key.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte)0);
+      }
+      StringBuilder sb = new StringBuilder();
+      byte[] bytes = digest.digest();
+      for (int ii = 0; ii < 8; ii++) sb.append(String.format("%02x", bytes[ii]));
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
 }
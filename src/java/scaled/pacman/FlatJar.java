@@ -0,0 +1,207 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+/**
+ * Merges a flat classpath into a single, uncompressed jar file. Loading classes from one such jar
+ * avoids searching the central directories of dozens of jars on every lookup. Merged jars are
+ * cached by a hash of the classpath they contain and are rebuilt when any entry of that classpath
+ * changes.
+ *
+ * <p>The package attributes (specification and implementation versions, sealing) of each input
+ * jar's manifest are preserved as per-package sections of the merged manifest. Classpaths which
+ * contain multi-release jars, or jars which reference other jars via {@code Class-Path}, are not
+ * merged, as a single jar cannot express those.</p>
+ */
+public class FlatJar {
+
+  /** Returns the merged jar for {@code classpath}, creating it in {@code dir} if needed, or null
+    * if the classpath cannot be merged (see above). Earlier entries in the classpath take
+    * precedence over later entries, as with a normal classpath. */
+  public static Path get (Path dir, List<Path> classpath) throws IOException {
+    String cpkey = "flat-" + Filez.hashPaths(classpath, false);
+    Path jar = dir.resolve(cpkey + "-" + Filez.hashPaths(classpath, true) + ".jar");
+    if (Files.exists(jar)) return jar;
+
+    for (Path path : classpath) if (!isMergeable(path)) return null;
+
+    // clear out any stale merged jars for this classpath, sparing recent ones which a concurrent
+    // launch may have just chosen but not yet opened
+    Filez.deleteStale(dir, cpkey + "-*.jar");
+    Log.log("Creating merged launch jar " + jar.getFileName() + "...");
+    Path temp = Files.createTempFile(dir, cpkey, ".tmp");
+    try {
+      new FlatJar().write(classpath, temp);
+      Files.move(temp, jar, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+    return jar;
+  }
+
+  protected void write (List<Path> classpath, Path target) throws IOException {
+    _manifest.getMainAttributes().putValue("Manifest-Version", "1.0");
+    _manifest.getMainAttributes().putValue("Created-By", "pacman");
+    try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(target))) {
+      _names.add(JarFile.MANIFEST_NAME);
+      // the package indices of module jars do not describe the merged jar
+      _names.add(PackageIndex.PATH);
+      for (Path path : classpath) {
+        if (Files.isDirectory(path)) addDir(out, path);
+        else if (Files.exists(path)) addJar(out, path);
+      }
+      // service registrations must be merged, not shadowed
+      for (Map.Entry<String,ByteArrayOutputStream> entry : _services.entrySet()) {
+        writeEntry(out, entry.getKey(), entry.getValue().toByteArray());
+      }
+      // the manifest is written last, as it accumulates the package attributes of every input
+      ByteArrayOutputStream man = new ByteArrayOutputStream();
+      _manifest.write(man);
+      writeEntry(out, JarFile.MANIFEST_NAME, man.toByteArray());
+    }
+  }
+
+  protected void addJar (JarOutputStream out, Path path) throws IOException {
+    try (JarFile jar = new JarFile(path.toFile(), false)) {
+      Manifest man = jar.getManifest();
+      _pkgAttrs = (man == null) ? null : packageAttrs(man.getMainAttributes());
+      // a package may also have its own section, which takes precedence (see addEntry)
+      _entryAttrs = (man == null) ? null : man.getEntries();
+      for (Enumeration<JarEntry> iter = jar.entries(); iter.hasMoreElements(); ) {
+        JarEntry entry = iter.nextElement();
+        if (entry.isDirectory()) continue;
+        try (InputStream in = jar.getInputStream(entry)) { addEntry(out, entry.getName(), in); }
+      }
+    } finally {
+      _pkgAttrs = null;
+      _entryAttrs = null;
+    }
+  }
+
+  protected void addDir (JarOutputStream out, Path root) throws IOException {
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override public FileVisitResult visitFile (Path file, BasicFileAttributes attrs)
+      throws IOException {
+        if (attrs.isRegularFile()) {
+          List<String> parts = new ArrayList<>();
+          for (Path part : root.relativize(file)) parts.add(part.toString());
+          try (InputStream in = Files.newInputStream(file)) {
+            addEntry(out, String.join("/", parts), in);
+          }
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  protected void addEntry (JarOutputStream out, String name, InputStream in) throws IOException {
+    if (name.startsWith("META-INF/services/")) {
+      ByteArrayOutputStream svc = _services.get(name);
+      if (svc == null) _services.put(name, svc = new ByteArrayOutputStream());
+      copy(in, svc);
+      svc.write('\n');
+    } else if (!isSignature(name) && _names.add(name)) {
+      ByteArrayOutputStream data = new ByteArrayOutputStream();
+      copy(in, data);
+      writeEntry(out, name, data.toByteArray());
+      // the first jar to provide a class in a package provides that package's attributes
+      int sidx = name.lastIndexOf('/');
+      if (name.endsWith(".class") && sidx > 0) {
+        String pkgPath = name.substring(0, sidx+1);
+        Attributes attrs = (_entryAttrs == null) ? null : _entryAttrs.get(pkgPath);
+        if (attrs == null) attrs = _pkgAttrs;
+        if (attrs != null) _manifest.getEntries().putIfAbsent(pkgPath, attrs);
+      }
+    }
+  }
+
+  protected void writeEntry (JarOutputStream out, String name, byte[] data) throws IOException {
+    // we store entries uncompressed so that classes can be read without inflation
+    ZipEntry entry = new ZipEntry(name);
+    entry.setMethod(ZipEntry.STORED);
+    entry.setSize(data.length);
+    entry.setCompressedSize(data.length);
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    entry.setCrc(crc.getValue());
+    out.putNextEntry(entry);
+    out.write(data);
+    out.closeEntry();
+  }
+
+  // returns false if path is a jar whose manifest affects how it's loaded in a way that can't be
+  // expressed by a merged jar
+  private static boolean isMergeable (Path path) throws IOException {
+    if (!Files.isRegularFile(path)) return true;
+    try (JarFile jar = new JarFile(path.toFile(), false)) {
+      Manifest man = jar.getManifest();
+      if (man == null) return true;
+      Attributes attrs = man.getMainAttributes();
+      return !"true".equalsIgnoreCase(attrs.getValue("Multi-Release")) &&
+        attrs.getValue(Attributes.Name.CLASS_PATH) == null;
+    }
+  }
+
+  // extracts the attributes of a jar's main manifest section that apply to its packages
+  private static Attributes packageAttrs (Attributes main) {
+    Attributes attrs = new Attributes();
+    for (Attributes.Name name : PACKAGE_ATTRS) {
+      String value = main.getValue(name);
+      if (value != null) attrs.put(name, value);
+    }
+    return attrs.isEmpty() ? null : attrs;
+  }
+
+  private static boolean isSignature (String name) {
+    if (!name.startsWith("META-INF/") || name.indexOf('/', 9) != -1) return false;
+    return name.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA") ||
+      name.endsWith(".EC");
+  }
+
+  private static void copy (InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) > 0) out.write(buffer, 0, read);
+  }
+
+  private final Manifest _manifest = new Manifest();
+  private final Set<String> _names = new HashSet<>();
+  private final Map<String,ByteArrayOutputStream> _services = new LinkedHashMap<>();
+  // the package attributes and per-entry sections of the jar currently being added, if any
+  private Attributes _pkgAttrs;
+  private Map<String,Attributes> _entryAttrs;
+
+  private static final Attributes.Name[] PACKAGE_ATTRS = {
+    Attributes.Name.SPECIFICATION_TITLE, Attributes.Name.SPECIFICATION_VERSION,
+    Attributes.Name.SPECIFICATION_VENDOR, Attributes.Name.IMPLEMENTATION_TITLE,
+    Attributes.Name.IMPLEMENTATION_VERSION, Attributes.Name.IMPLEMENTATION_VENDOR,
+    Attributes.Name.SEALED
+  };
+}
@@ -0,0 +1,165 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads git metadata (the config, {@code HEAD}, loose refs and packed refs) directly from a
+ * repository's {@code .git} directory, so that simple questions (where is this clone from, what
+ * commit is checked out) can be answered without running {@code git}. Linked worktrees and
+ * {@code .git} files are handled. Anything unusual results in null, in which case callers should
+ * fall back to asking {@code git}.
+ */
+public class GitMeta {
+
+  /** Returns the metadata for the clone rooted at {@code root}, or null if {@code root} does not
+    * contain a {@code .git} directory (or file). This does not search parent directories. */
+  public static GitMeta read (Path root) throws IOException {
+    Path gitDir = root.resolve(".git");
+    if (Files.isRegularFile(gitDir)) {
+      // a .git file contains 'gitdir: <path>' (used by worktrees and submodules)
+      String line = readFirstLine(gitDir);
+      if (line == null || !line.startsWith("gitdir:")) return null;
+      gitDir = root.resolve(line.substring("gitdir:".length()).trim()).normalize();
+    }
+    if (!Files.isDirectory(gitDir)) return null;
+    // a linked worktree has its own HEAD, but shares config and refs with the main repository
+    Path commonDir = gitDir;
+    String common = readFirstLine(gitDir.resolve("commondir"));
+    if (common != null) commonDir = gitDir.resolve(common).normalize();
+    return new GitMeta(gitDir, commonDir);
+  }
+
+  /** The directory that contains {@code HEAD}. */
+  public final Path gitDir;
+
+  /** The directory that contains the config and refs. */
+  public final Path commonDir;
+
+  public GitMeta (Path gitDir, Path commonDir) throws IOException {
+    this.gitDir = gitDir;
+    this.commonDir = commonDir;
+    Path config = commonDir.resolve("config");
+    if (Files.exists(config)) parseConfig(Files.readAllLines(config, StandardCharsets.UTF_8));
+  }
+
+  /** Returns the value of {@code key} in config {@code section} (e.g. {@code remote "origin"}),
+    * or null. Section names and keys are case-insensitive, subsection names are not. */
+  public String config (String section, String key) {
+    return _config.get(section + "." + key.toLowerCase());
+  }
+
+  /** Returns the URL of the {@code origin} remote, or null. */
+  public String origin () {
+    return config("remote \"origin\"", "url");
+  }
+
+  /** Returns the name of the checked out branch, or null if {@code HEAD} is detached. */
+  public String branch () throws IOException {
+    String head = readFirstLine(gitDir.resolve("HEAD"));
+    return (head != null && head.startsWith("ref: refs/heads/")) ?
+      head.substring("ref: refs/heads/".length()) : null;
+  }
+
+  /** Returns the commit id of {@code HEAD}, or null if it cannot be determined (e.g. in a new
+    * repository with no commits). */
+  public String head () throws IOException {
+    String head = readFirstLine(gitDir.resolve("HEAD"));
+    if (head == null) return null;
+    if (head.startsWith("ref: ")) return resolve(head.substring("ref: ".length()).trim());
+    return isId(head) ? head : null;
+  }
+
+  /** Returns the commit id of the remote tracking branch that the checked out branch merges from
+    * (e.g. {@code refs/remotes/origin/master}), as of the last fetch, or null if there is no such
+    * branch. */
+  public String upstream () throws IOException {
+    String branch = branch();
+    if (branch == null) return null;
+    String section = "branch \"" + branch + "\"";
+    String remote = config(section, "remote"), merge = config(section, "merge");
+    if (remote == null || merge == null || !merge.startsWith("refs/heads/")) return null;
+    if (remote.equals(".")) return resolve(merge); // tracking a local branch
+    return resolve("refs/remotes/" + remote + "/" + merge.substring("refs/heads/".length()));
+  }
+
+  /** Returns the commit id of {@code ref} (e.g. {@code refs/heads/master}), or null. */
+  public String resolve (String ref) throws IOException {
+    // follow symbolic refs, but not forever
+    for (int depth = 0; depth < 5; depth++) {
+      Path dir = ref.startsWith("refs/") ? commonDir : gitDir;
+      String id = readFirstLine(dir.resolve(ref));
+      if (id == null) return packedRefs().get(ref);
+      if (!id.startsWith("ref: ")) return isId(id) ? id : null;
+      ref = id.substring("ref: ".length()).trim();
+    }
+    return null;
+  }
+
+  private Map<String,String> packedRefs () throws IOException {
+    if (_packedRefs == null) {
+      _packedRefs = new HashMap<>();
+      Path file = commonDir.resolve("packed-refs");
+      if (Files.exists(file)) {
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+          // skip comments and peeled tag lines (^id)
+          if (line.startsWith("#") || line.startsWith("^")) continue;
+          int space = line.indexOf(' ');
+          if (space > 0) _packedRefs.put(line.substring(space+1).trim(), line.substring(0, space));
+        }
+      }
+    }
+    return _packedRefs;
+  }
+
+  private void parseConfig (List<String> lines) {
+    String section = "";
+    for (String line : lines) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#") || line.startsWith(";")) continue;
+      if (line.startsWith("[")) {
+        int end = line.lastIndexOf(']');
+        if (end < 0) continue;
+        // [remote "origin"] -> remote "origin"; the section name is case-insensitive, the
+        // (quoted) subsection is not
+        String header = line.substring(1, end).trim();
+        int quote = header.indexOf('"');
+        section = (quote < 0) ? header.toLowerCase() :
+          header.substring(0, quote).trim().toLowerCase() + " " + header.substring(quote);
+        continue;
+      }
+      int eq = line.indexOf('=');
+      String key = (eq < 0 ? line : line.substring(0, eq)).trim().toLowerCase();
+      String value = (eq < 0) ? "true" : unquote(line.substring(eq+1).trim());
+      // the first value wins for multivalued keys, which is what we want for remote URLs
+      _config.putIfAbsent(section + "." + key, value);
+    }
+  }
+
+  private static String unquote (String value) {
+    return (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) ?
+      value.substring(1, value.length()-1) : value;
+  }
+
+  private static boolean isId (String text) {
+    return text.matches("[0-9a-f]{40}([0-9a-f]{24})?");
+  }
+
+  private static String readFirstLine (Path file) throws IOException {
+    if (!Files.isRegularFile(file)) return null;
+    List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+    return lines.isEmpty() ? null : lines.get(0).trim();
+  }
+
+  private final Map<String,String> _config = new HashMap<>();
+  private Map<String,String> _packedRefs;
+}
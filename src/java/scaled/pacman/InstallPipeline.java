@@ -0,0 +1,261 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Installs a package and its depends as a pipeline of clone, download and build stages, each of
+ * which has its own pool of threads. Each package is cloned as soon as it is discovered, its Maven
+ * depends are downloaded as soon as it is cloned, and it is built as soon as its downloads are
+ * complete and the packages on which it depends are built. Meanwhile clones and downloads continue
+ * for the rest of the depend tree.
+ *
+ * <p>Packages deeper in the depend tree must be built before those that depend on them, so their
+ * downloads are on the critical path: downloads are prioritized by the depth of the package that
+ * needs them. A package's depth is the length of the longest path to it that has been discovered,
+ * so a package's downloads are requeued with a higher priority if a deeper path to it turns up
+ * before they start.</p>
+ */
+public class InstallPipeline {
+
+  /**
+   * @param scratchDir the directory into which new packages are cloned and built before being
+   * moved into the package repository.
+   */
+  public InstallPipeline (PackageRepo repo, Path scratchDir) {
+    _repo = repo;
+    _scratchDir = scratchDir;
+  }
+
+  /** Installs the package referenced by {@code source} and all of its depends. Depends which are
+    * already installed are updated, and rebuilt if they changed or if any of their depends were
+    * rebuilt.
+    * @return the already installed packages that were rebuilt. */
+  public List<Package> install (Source source) throws IOException {
+    try {
+      Node root = node(source, 0);
+      awaitClones();
+      checkCycles(root, new HashSet<>(), new ArrayList<>());
+      root.built.join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      while (cause instanceof CompletionException) cause = cause.getCause();
+      if (cause instanceof IOException) throw (IOException)cause;
+      throw new IOException("Install failed: " + source, cause);
+    } finally {
+      // don't start any more clones or builds, but let those in progress finish rather than
+      // interrupting them, as an installed package is updated and rebuilt in place
+      _aborted = true;
+      _fetches.shutdownNow();
+      _clones.shutdown();
+      _builds.shutdown();
+      awaitTermination(_clones);
+      awaitTermination(_builds);
+    }
+
+    List<Package> rebuilt = new ArrayList<>();
+    for (Node node : nodes()) {
+      if (node.installed != null && node.built.join()) rebuilt.add(node.cloned.join());
+    }
+    return rebuilt;
+  }
+
+  /** Returns the sources of all packages visited by {@link #install}. */
+  public synchronized Set<Source> visited () {
+    return new LinkedHashSet<>(_nodes.keySet());
+  }
+
+  private class Node {
+    public final Source source;
+    /** The length of the longest known path to this package from the root. */
+    public volatile int depth;
+    /** The installed version of this package, or null if it's a new package. */
+    public final Package installed;
+    /** This package's depends, once it has been cloned. Guarded by the pipeline's monitor. */
+    public final List<Node> depends = new ArrayList<>();
+    /** Downloads this package's Maven depends, once it has been cloned. */
+    public Runnable fetch;
+    public final AtomicBoolean fetchStarted = new AtomicBoolean();
+
+    public final CompletableFuture<Package> cloned = new CompletableFuture<>();
+    public final CompletableFuture<Void> fetched = new CompletableFuture<>();
+    /** Completes with true if the package was (re)built, false if it was up to date. */
+    public final CompletableFuture<Boolean> built = new CompletableFuture<>();
+
+    public Node (Source source, int depth) {
+      this.source = source;
+      this.depth = depth;
+      this.installed = _repo.packageBySource(source).orElse(null);
+    }
+
+    @Override public String toString () {
+      return source.toString();
+    }
+  }
+
+  private synchronized Node node (Source source, int depth) {
+    Node node = _nodes.get(source);
+    if (node == null) {
+      _nodes.put(source, node = new Node(source, depth));
+      Node fnode = node;
+      _clones.execute(() -> clone(fnode));
+    } else deepen(node, depth);
+    return node;
+  }
+
+  private synchronized void addDepends (Node node, Set<Source> sources) {
+    for (Source dsrc : sources) {
+      if (!dsrc.equals(node.source)) node.depends.add(node(dsrc, node.depth+1));
+    }
+  }
+
+  // notes that node can be reached via a path of length depth, which, if that's longer than the
+  // paths we knew of, raises the priority of its downloads and those of its depends
+  private synchronized void deepen (Node node, int depth) {
+    // no path is longer than the number of nodes, unless there's a cycle (reported later)
+    if (depth <= node.depth || depth > _nodes.size()) return;
+    node.depth = depth;
+    if (node.fetch != null && !node.fetchStarted.get()) _fetches.execute(depth, node.fetch);
+    for (Node dep : node.depends) deepen(dep, depth+1);
+  }
+
+  private synchronized void scheduleFetch (Node node, Runnable fetch) {
+    // the fetch may be queued more than once (see deepen), but runs only once
+    node.fetch = () -> { if (node.fetchStarted.compareAndSet(false, true)) fetch.run(); };
+    _fetches.execute(node.depth, node.fetch);
+  }
+
+  private synchronized List<Node> nodes () {
+    return new ArrayList<>(_nodes.values());
+  }
+
+  private synchronized List<Node> depends (Node node) {
+    return new ArrayList<>(node.depends);
+  }
+
+  private void clone (Node node) {
+    try {
+      if (_aborted) throw new IOException("Install aborted");
+      PackageFetcher pf;
+      if (node.installed != null) {
+        Log.log("Updating " + node.source + "...");
+        pf = new PackageFetcher(_repo, node.source, node.installed.root);
+        pf.update();
+      } else {
+        Log.log("Cloning " + node.source + " into temp dir...");
+        pf = new PackageFetcher(_repo, node.source, Files.createTempDirectory(_scratchDir, "pkg"));
+        pf.checkout();
+      }
+      Package pkg = pf.readPackage();
+
+      // discover (and start cloning) this package's depends
+      addDepends(node, pkg.packageDepends());
+
+      // start downloading its Maven depends
+      Set<List<RepoId>> sets = new LinkedHashSet<>();
+      for (Module mod : pkg.modules()) {
+        List<RepoId> ids = mod.mavenDepends();
+        if (!ids.isEmpty()) sets.add(ids);
+      }
+      scheduleFetch(node, () -> {
+        try {
+          for (List<RepoId> ids : sets) _repo.mvn.fetcher.prefetch(ids, node.depth);
+        } finally {
+          // failed downloads are reported by the build's resolution, so we proceed regardless
+          node.fetched.complete(null);
+        }
+      });
+
+      // and build it once its downloads are complete and its depends are built
+      List<CompletableFuture<?>> waits = new ArrayList<>();
+      waits.add(node.fetched);
+      for (Node dep : depends(node)) waits.add(dep.built);
+      CompletableFuture.allOf(waits.toArray(new CompletableFuture<?>[0])).whenCompleteAsync(
+        (v, err) -> {
+          if (err != null) node.built.completeExceptionally(err);
+          else try { node.built.complete(build(node, pf, pkg)); }
+          catch (Throwable t) { node.built.completeExceptionally(t); }
+        }, _builds);
+
+      node.cloned.complete(pkg);
+    } catch (Throwable t) {
+      node.cloned.completeExceptionally(t);
+      node.built.completeExceptionally(t);
+    }
+  }
+
+  private boolean build (Node node, PackageFetcher pf, Package pkg) throws IOException {
+    if (_aborted) throw new IOException("Install aborted");
+    PackageBuilder pb = new PackageBuilder(_repo, pkg);
+    if (node.installed == null) {
+      Log.log("Building " + pkg.name + "...");
+      pb.build();
+      Log.log("Installing " + node.source + " into Packages/" + pkg.name + "...");
+      pf.install(pkg);
+      return true;
+    }
+    // an installed package must be rebuilt if anything it depends on was rebuilt
+    for (Node dep : depends(node)) if (dep.built.join()) {
+      pb.build();
+      return true;
+    }
+    return pb.rebuild();
+  }
+
+  // waits for every package in the depend tree to be cloned; cloning a package registers the
+  // nodes for its depends before it completes, so once no new nodes appear, we're done
+  private void awaitClones () {
+    int seen;
+    List<Node> nodes;
+    do {
+      nodes = nodes();
+      seen = nodes.size();
+      for (Node node : nodes) node.cloned.join();
+    } while (nodes().size() > seen);
+  }
+
+  private void checkCycles (Node node, Set<Node> checked, List<Node> path) throws IOException {
+    if (path.contains(node)) {
+      List<Node> cycle = new ArrayList<>(path.subList(path.indexOf(node), path.size()));
+      cycle.add(node);
+      throw new IOException("Package depend cycle: " + cycle);
+    }
+    if (!checked.add(node)) return;
+    path.add(node);
+    for (Node dep : depends(node)) checkCycles(dep, checked, path);
+    path.remove(path.size()-1);
+  }
+
+  private static void awaitTermination (ExecutorService exec) {
+    try { exec.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS); }
+    catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+  }
+
+  private final PackageRepo _repo;
+  private final Path _scratchDir;
+  private volatile boolean _aborted;
+  private final Map<Source,Node> _nodes = new LinkedHashMap<>();
+
+  private final ExecutorService _clones = Executors.newFixedThreadPool(Props.cloneThreads);
+  private final PriorityExecutor _fetches = new PriorityExecutor(
+    Props.fetchThreads, "pacman-prefetch");
+  private final ExecutorService _builds = Executors.newFixedThreadPool(Props.buildThreads);
+}
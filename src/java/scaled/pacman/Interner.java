@@ -0,0 +1,35 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps values to dense integer ids, so that sets of them can be represented as {@link
+ * java.util.BitSet}s. Ids are assigned in order of first interning and are never released.
+ */
+public class Interner<T> {
+
+  /** Returns the id for {@code value}, assigning one if it has not yet been interned. */
+  public synchronized int intern (T value) {
+    Integer id = _ids.get(value);
+    if (id == null) {
+      _ids.put(value, id = _values.size());
+      _values.add(value);
+    }
+    return id;
+  }
+
+  /** Returns the value with id {@code id}. */
+  public synchronized T get (int id) {
+    return _values.get(id);
+  }
+
+  private final Map<T,Integer> _ids = new HashMap<>();
+  private final List<T> _values = new ArrayList<>();
+}
@@ -13,6 +13,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /** Contains info on a JDK installed on the local machine. */
 public class JDK {
@@ -23,24 +24,46 @@ public class JDK {
   /** All JDKs that could be found on the local machine. */
   public static List<JDK> jdks () {
     if (_jdks == null) {
-      _jdks = new ArrayList<>();
-      if (isMac) {
-        findJDKs(_jdks, "/Library/Java/JavaVirtualMachines");
-        findJDKs(_jdks, "/System/Library/Java/JavaVirtualMachines");
-      }
-      else if (isWin) {} // TODO!
-      else if (isLin) {} // TODO!
-      // else halp!
-
-      // if our running JDK is just a JRE, move it  to the end of the list,
-      // otherwise move it to the start of the list
-      _jdks.remove(thisJDK);
-      int pos = Files.exists(thisJDK.root()) ? 0 : _jdks.size();
-      _jdks.add(pos, thisJDK);
+      List<JDK> jdks = new ArrayList<>();
+      for (Path home : findHomes()) jdks.add(new JDK(home));
+      _jdks = withThisJDK(jdks);
     }
     return _jdks;
   }
 
+  /** Returns the homes of all JDKs that could be found on the local machine, not including the
+    * running JDK (unless it happens to be installed in one of the standard places). */
+  public static List<Path> findHomes () {
+    List<Path> homes = new ArrayList<>();
+    if (isMac) {
+      findHomes(homes, Paths.get("/Library/Java/JavaVirtualMachines"), true);
+      findHomes(homes, Paths.get("/System/Library/Java/JavaVirtualMachines"), true);
+    }
+    else if (isWin) {} // TODO!
+    else if (isLin) {
+      findHomes(homes, Paths.get("/usr/lib/jvm"), false);
+      findHomes(homes, Paths.get("/usr/java"), false);
+      findHomes(homes, Paths.get("/opt"), false);
+      findHomes(homes, Paths.get("/opt/java"), false);
+      // JDKs installed by SDKMAN and by IntelliJ
+      Path userHome = Paths.get(Props.userHome);
+      findHomes(homes, userHome.resolve(".sdkman").resolve("candidates").resolve("java"), false);
+      findHomes(homes, userHome.resolve(".jdks"), false);
+    }
+    // else halp!
+    return homes;
+  }
+
+  /** Returns {@code jdks} with the running JDK added: at the start of the list if it's a full JDK,
+    * at the end if it's just a JRE. */
+  public static List<JDK> withThisJDK (List<JDK> jdks) {
+    List<JDK> all = new ArrayList<>(jdks);
+    all.remove(thisJDK);
+    int pos = Files.exists(thisJDK.root()) ? 0 : all.size();
+    all.add(pos, thisJDK);
+    return all;
+  }
+
   public static void main (String[] args) {
     for (JDK jdk : jdks()) {
       System.out.println(jdk.version() + " -> " + jdk.home);
@@ -50,6 +73,12 @@ public class JDK {
   /** The home of this JDK installation. */
   public final Path home;
 
+  /** Creates a JDK with previously read {@code version} (see {@link JDKRegistry}). */
+  public JDK (Path home, String version) {
+    this.home = home;
+    if (version != null) _releaseData.put("JAVA_VERSION", version);
+  }
+
   public JDK (Path home) {
     this.home = home;
     try {
@@ -72,11 +101,15 @@ public class JDK {
     return _releaseData.getOrDefault("JAVA_VERSION", "1.?.?");
   }
 
-  /** Returns the major version of this JDK: 8, 7, 6, etc.
+  /** Returns the major version of this JDK: 17, 11, 8, 7, 6, etc.
     * Returns `?` if it cannot be determined. */
   public String majorVersion () {
-    String[] parts = version().split("\\.", 3);
-    return (parts.length == 3 && parts[0].equals("1")) ? parts[1] : "?";
+    // split on any non-digits, so that 1.8.0_392, 17+35 and 21 all yield their numbers
+    String[] parts = version().split("[^0-9]+");
+    if (parts.length == 0 || parts[0].isEmpty()) return "?";
+    // before Java 9, versions look like 1.8.0_392; since, like 9, 11.0.2, 17+35, etc.
+    if (parts[0].equals("1")) return (parts.length > 1) ? parts[1] : "?";
+    return parts[0];
   }
 
   /** Returns the path to the `java` command for this JDK. */
@@ -89,6 +122,10 @@ public class JDK {
     return home.resolve("src.zip");
   }
 
+  @Override public String toString () {
+    return version() + " (" + home + ")";
+  }
+
   @Override public boolean equals (Object other) {
     return (other instanceof JDK) && home.equals(((JDK)other).home);
   }
@@ -102,14 +139,15 @@ public class JDK {
 
   private static List<JDK> _jdks;
 
-  private static void findJDKs (List<JDK> jdks, String dir) {
-    try {
-      Path path = Paths.get(dir);
-      if (Files.exists(path)) {
-        for (Path subdir : Files.list(path).collect(Collectors.toList())) {
-          Path home = subdir.resolve("Contents").resolve("Home");
-          if (isHome(home)) jdks.add(new JDK(home));
-        }
+  // Mac JDKs have their homes in Contents/Home inside the directories in 'dir'
+  private static void findHomes (List<Path> homes, Path dir, boolean bundled) {
+    if (!Files.isDirectory(dir)) return;
+    try (Stream<Path> subdirs = Files.list(dir)) {
+      for (Path subdir : subdirs.sorted().collect(Collectors.toList())) {
+        // skip symlinks like /usr/lib/jvm/default-java so that we don't list JDKs twice
+        if (Files.isSymbolicLink(subdir)) continue;
+        Path home = bundled ? subdir.resolve("Contents").resolve("Home") : subdir;
+        if (isHome(home)) homes.add(home);
       }
     } catch (Exception e) {
       e.printStackTrace(System.err);
@@ -0,0 +1,157 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks the JDKs installed on the local machine. The version of each JDK is cached (in a file in
+ * the metadata directory) along with the modification time of its {@code release} file, so that
+ * JDKs are only inspected when they are installed or updated. All JDKs are indexed by the prefixes
+ * of their version ({@code 1.8}, {@code 1.8.0}, {@code 17}, etc.) and by the name of their home
+ * directory, so most lookups are constant time. A version that matches no indexed prefix (say
+ * {@code 1.8.0_3}) falls back to a scan for a JDK whose version starts with it.
+ */
+public class JDKRegistry {
+
+  /** @param file the file in which JDK info is cached, or null to not cache it. */
+  public JDKRegistry (Path file) {
+    _file = file;
+  }
+
+  /** Creates a registry of exactly {@code jdks}, which does not look for installed JDKs. */
+  public JDKRegistry (List<JDK> jdks) {
+    _file = null;
+    index(jdks);
+  }
+
+  /** Returns all known JDKs. The running JDK comes first if it is a full JDK. */
+  public synchronized List<JDK> jdks () {
+    if (_jdks == null) init();
+    return _jdks;
+  }
+
+  /** Returns the first JDK whose version starts with {@code version} (e.g. {@code 1.8},
+    * {@code 1.8.0} or {@code 17}), or null if no such JDK is known. A prefix which ends at a
+    * component boundary ({@code .}, {@code _}, {@code +}, etc.) is preferred, so {@code 1.8}
+    * matches {@code 1.8.0_392} before {@code 1.80}. A major version also matches, so {@code 8}
+    * matches {@code 1.8.0_392}. */
+  public synchronized JDK byVersion (String version) {
+    if (_jdks == null) init();
+    JDK jdk = _byVersion.get(version);
+    if (jdk != null) return jdk;
+    for (JDK cjdk : _jdks) if (cjdk.version().startsWith(version)) return cjdk;
+    return null;
+  }
+
+  /** Returns the JDK identified by {@code name}, which may be the path to its home, the name of its
+    * home directory (e.g. {@code java-17-openjdk-amd64}), or a version prefix. Returns null if no
+    * such JDK is known. */
+  public synchronized JDK byName (String name) {
+    if (_jdks == null) init();
+    JDK jdk = _byName.get(name);
+    return (jdk == null) ? byVersion(name) : jdk;
+  }
+
+  private void init () {
+    Map<Path,Entry> cached = read();
+    Map<Path,Entry> entries = new HashMap<>();
+    List<JDK> jdks = new ArrayList<>();
+    boolean dirty = false;
+    for (Path home : JDK.findHomes()) {
+      long mtime = mtime(home);
+      Entry entry = cached.get(home);
+      if (entry == null || entry.mtime != mtime) {
+        entry = new Entry(mtime, new JDK(home).version());
+        dirty = true;
+      }
+      entries.put(home, entry);
+      jdks.add(new JDK(home, entry.version));
+    }
+    if (dirty || entries.size() != cached.size()) write(entries);
+    index(JDK.withThisJDK(jdks));
+  }
+
+  private void index (List<JDK> jdks) {
+    _jdks = jdks;
+    for (JDK jdk : jdks) {
+      _byName.putIfAbsent(jdk.home.toString(), jdk);
+      Path name = jdk.home.getFileName();
+      if (name != null) _byName.putIfAbsent(name.toString(), jdk);
+      // index every prefix that ends at a component boundary: 1, 1.8, 1.8.0 for 1.8.0_392
+      String version = jdk.version();
+      for (int ii = 1; ii < version.length(); ii++) {
+        if (!Character.isDigit(version.charAt(ii)) && Character.isDigit(version.charAt(ii-1))) {
+          _byVersion.putIfAbsent(version.substring(0, ii), jdk);
+        }
+      }
+      _byVersion.putIfAbsent(version, jdk);
+      // also index the major version, so that 8 finds 1.8.x
+      _byVersion.putIfAbsent(jdk.majorVersion(), jdk);
+    }
+  }
+
+  private static long mtime (Path home) {
+    try { return Files.getLastModifiedTime(home.resolve("release")).toMillis(); }
+    catch (IOException e) { return 0L; }
+  }
+
+  private static class Entry {
+    public final long mtime;
+    public final String version;
+    public Entry (long mtime, String version) {
+      this.mtime = mtime;
+      this.version = version;
+    }
+  }
+
+  private Map<Path,Entry> read () {
+    Map<Path,Entry> entries = new HashMap<>();
+    if (_file == null || !Files.exists(_file)) return entries;
+    try {
+      for (String line : Files.readAllLines(_file, StandardCharsets.UTF_8)) {
+        String[] bits = line.split("\t", 3);
+        if (bits.length == 3) entries.put(
+          Paths.get(bits[2]), new Entry(Long.parseLong(bits[0]), bits[1]));
+      }
+    } catch (IOException | NumberFormatException e) {
+      Log.log("Ignoring invalid JDK registry", "file", _file, "error", e);
+      entries.clear();
+    }
+    return entries;
+  }
+
+  private void write (Map<Path,Entry> entries) {
+    if (_file == null) return;
+    List<String> lines = new ArrayList<>();
+    for (Map.Entry<Path,Entry> entry : entries.entrySet()) {
+      Entry e = entry.getValue();
+      lines.add(e.mtime + "\t" + e.version + "\t" + entry.getKey());
+    }
+    try {
+      Files.createDirectories(_file.getParent());
+      Path temp = Files.createTempFile(_file.getParent(), "jdks", ".tmp");
+      Files.write(temp, lines, StandardCharsets.UTF_8);
+      Files.move(temp, _file, StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      Log.log("Failed to save JDK registry", "file", _file, e);
+    }
+  }
+
+  private final Path _file;
+  private List<JDK> _jdks;
+  private final Map<String,JDK> _byName = new HashMap<>();
+  private final Map<String,JDK> _byVersion = new HashMap<>();
+}
@@ -0,0 +1,124 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Records the sequence of classes loaded via pacman's loaders (module, shared and system depend
+ * loaders, including JDK classes requested through them) when running a module entry point, and
+ * on subsequent launches of that entry point, preloads those classes on background threads while
+ * {@code main} starts up. A profile is keyed on the module and class being run, and is discarded
+ * when any entry of the module's classpath changes. Modules are checked via their module jars,
+ * which are rewritten by every build.
+ */
+public class LoadProfile {
+
+  /** The number of classes handed to a preloader thread at a time. */
+  public static final int BATCH_SIZE = 64;
+
+  /** Starts profiling or preloading (as appropriate) for a run of {@code classname} from
+    * {@code mod}, whose classes will be loaded by {@code loader}. */
+  public static void start (PackageRepo repo, Module mod, String classname, ClassLoader loader) {
+    try {
+      Depends deps = mod.depends(repo.resolver);
+      // profiles are keyed on the module root and the class being run
+      String key = Filez.hashPaths(Arrays.asList(mod.root.resolve(classname)), false);
+      Path file = repo.metaDir("Profiles").resolve(key + ".profile");
+      String stamp = Filez.hashPaths(stampPaths(deps.classpath()), true);
+      List<String> names = read(file, stamp);
+      if (names != null) preload(names, loader);
+      else record(file, stamp);
+    } catch (IOException e) {
+      Log.log("Unable to start class load profiling for " + mod, e);
+    }
+  }
+
+  /** Notes that {@code name} was loaded via a pacman loader. Loaders call this after the class
+    * (and thus its supertypes) has been loaded, so supertypes are recorded first. This is a noop
+    * unless we're recording a profile. */
+  public static void noteLoaded (String name) {
+    Queue<String> recorded = _recorded;
+    if (recorded != null) recorded.add(name);
+  }
+
+  // the modification time of a module's classes directory does not change when the classes in it
+  // are rebuilt, so we stamp each module via its module jar (in the same output directory) instead
+  private static List<Path> stampPaths (List<Path> classpath) {
+    List<Path> paths = new ArrayList<>();
+    for (Path path : classpath) {
+      Path jar = path.resolveSibling("module.jar");
+      paths.add(Files.isDirectory(path) && Files.exists(jar) ? jar : path);
+    }
+    return paths;
+  }
+
+  private static List<String> read (Path file, String stamp) throws IOException {
+    if (!Files.exists(file)) return null;
+    List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+    // the first line identifies the classpath from which the profile was recorded
+    if (lines.isEmpty() || !lines.get(0).equals(stamp)) {
+      Files.delete(file);
+      return null;
+    }
+    return lines.subList(1, lines.size());
+  }
+
+  private static void preload (List<String> names, ClassLoader loader) {
+    int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()-1));
+    ExecutorService exec = Executors.newFixedThreadPool(threads, task -> {
+      Thread thread = new Thread(task, "pacman-preloader");
+      thread.setDaemon(true);
+      return thread;
+    });
+    // batches are queued in recorded order, so classes are (mostly) loaded after the classes on
+    // which they depend; any class loaded out of order just pulls in its supertypes itself
+    for (int ii = 0; ii < names.size(); ii += BATCH_SIZE) {
+      List<String> batch = names.subList(ii, Math.min(ii+BATCH_SIZE, names.size()));
+      exec.execute(() -> {
+        for (String name : batch) {
+          try { Class.forName(name, false, loader); }
+          catch (Throwable t) {} // the real load will report any problem
+        }
+      });
+    }
+    exec.shutdown();
+  }
+
+  private static void record (Path file, String stamp) {
+    Queue<String> recorded = new ConcurrentLinkedQueue<>();
+    _recorded = recorded;
+    Runtime.getRuntime().addShutdownHook(new Thread() { public void run () {
+      _recorded = null;
+      Set<String> names = new LinkedHashSet<>(recorded);
+      List<String> lines = new ArrayList<>();
+      lines.add(stamp);
+      lines.addAll(names);
+      try {
+        Path temp = Files.createTempFile(file.getParent(), "profile", ".tmp");
+        Files.write(temp, lines, StandardCharsets.UTF_8);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        Log.log("Failed to save class load profile", "file", file, e);
+      }
+    }});
+  }
+
+  private static volatile Queue<String> _recorded;
+}
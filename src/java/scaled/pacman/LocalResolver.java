@@ -0,0 +1,60 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Resolves Maven depends entirely from the local repository, by reading POMs directly (see {@link
+ * PomResolver}). This avoids all of Aether's session setup and remote metadata and update policy
+ * checks, which are wasted effort when everything we need is already on disk.
+ */
+public class LocalResolver {
+
+  /**
+   * @param offline if true, SNAPSHOT artifacts are accepted as is, as we cannot check for updates
+   * to them anyway.
+   */
+  public LocalResolver (Path m2repo, boolean offline) {
+    _m2repo = m2repo;
+    _offline = offline;
+  }
+
+  /** Returns the local path for {@code id}. */
+  public Path localPath (RepoId id) {
+    return _m2repo.resolve(ArtifactFetcher.repoPath(id));
+  }
+
+  /** Resolves {@code ids} and their transitive depends from the local repository.
+    * @throws IOException if any POM or artifact is missing from the local repository, if the
+    * graph contains SNAPSHOT artifacts (which must be checked for updates, unless we're offline),
+    * or if any POM uses features that {@link Pom} does not model, or any depend is of a kind that
+    * we do not handle as Aether does (see {@link PomResolver#checkModeled}). */
+  public Map<RepoId,Path> resolve (List<RepoId> ids) throws IOException {
+    for (RepoId id : ids) PomResolver.checkModeled(id);
+    PomResolver resolver = new PomResolver(pomId -> {
+      Path path = localPath(pomId);
+      return CompletableFuture.completedFuture(Files.exists(path) ? path : null);
+    }, true);
+    Map<RepoId,Path> results = new LinkedHashMap<>();
+    for (RepoId id : resolver.resolve(ids)) {
+      if (!_offline && id.version.endsWith("-SNAPSHOT")) throw new IOException(
+        "SNAPSHOT depend: " + id);
+      Path path = localPath(id);
+      if (!Files.exists(path)) throw new IOException("Missing artifact: " + id);
+      results.put(id, path);
+    }
+    return results;
+  }
+
+  private final Path _m2repo;
+  private final boolean _offline;
+}
@@ -0,0 +1,113 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the resolved Maven depends of a module in {@code target/depends.lock}, keyed on a hash of
+ * the module's declared Maven depends. As long as those declarations do not change and the locked
+ * artifacts are still present, the lockfile is used instead of resolving the depends via Aether,
+ * which saves rereading POMs and metadata for the whole transitive graph on every invocation.
+ *
+ * <p>Resolutions which contain {@code SNAPSHOT} artifacts are never locked, as those are expected
+ * to change without any change in a module's declared depends.</p>
+ */
+public class LockFile {
+
+  /** The name of the lockfile, in a module's output directory. */
+  public static final String FILE = "depends.lock";
+
+  /** Resolves {@code ids} (the declared Maven depends of {@code mod}) via its lockfile, if
+    * possible, or via {@code resolve} (updating the lockfile), if not. */
+  public static Map<RepoId,Path> resolve (Module mod, List<RepoId> ids, Depends.Resolver resolve) {
+    Path file = mod.outputDir().resolve(FILE);
+    String hash = hash(ids);
+    Map<RepoId,Path> locked = read(file, hash);
+    if (locked != null) return locked;
+
+    Map<RepoId,Path> resolved = resolve.resolve(ids);
+    if (isLockable(resolved)) write(file, hash, resolved, resolve);
+    return resolved;
+  }
+
+  private static String hash (List<RepoId> ids) {
+    List<String> keys = new ArrayList<>();
+    for (RepoId id : ids) keys.add(format(id));
+    return Filez.hash(keys);
+  }
+
+  private static Map<RepoId,Path> read (Path file, String hash) {
+    if (!Files.exists(file)) return null;
+    try {
+      List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+      if (lines.size() < 2 || !lines.get(1).equals(HASH + hash)) return null;
+      Map<RepoId,Path> resolved = new LinkedHashMap<>();
+      for (String line : lines.subList(2, lines.size())) {
+        String[] bits = line.split("\t");
+        if (bits.length < 2) return null;
+        Path path = Paths.get(bits[1]);
+        // if a locked artifact has gone missing, resolve afresh (which will redownload it)
+        if (!Files.exists(path)) return null;
+        resolved.put(parse(bits[0]), path);
+      }
+      return resolved;
+    } catch (Exception e) {
+      Log.log("Ignoring invalid lockfile", "file", file, "error", e);
+      return null;
+    }
+  }
+
+  private static void write (Path file, String hash, Map<RepoId,Path> resolved,
+                             Depends.Resolver resolve) {
+    List<String> lines = new ArrayList<>();
+    lines.add(HEADER);
+    lines.add(HASH + hash);
+    for (Map.Entry<RepoId,Path> entry : resolved.entrySet()) {
+      RepoId id = entry.getKey();
+      lines.add(format(id) + "\t" + entry.getValue() + "\t" +
+                (resolve.isSystem(id) ? "system" : "binary"));
+    }
+    try {
+      Files.createDirectories(file.getParent());
+      Path temp = Files.createTempFile(file.getParent(), "depends", ".tmp");
+      Files.write(temp, lines, StandardCharsets.UTF_8);
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      Log.log("Failed to write lockfile", "file", file, e);
+    }
+  }
+
+  private static boolean isLockable (Map<RepoId,Path> resolved) {
+    // if resolution failed (or partially failed), don't lock it in
+    if (resolved.isEmpty()) return false;
+    for (Map.Entry<RepoId,Path> entry : resolved.entrySet()) {
+      if (entry.getValue() == null || entry.getKey().version.endsWith("-SNAPSHOT")) return false;
+    }
+    return true;
+  }
+
+  private static String format (RepoId id) {
+    return id.toString(); // groupId:artifactId:version:kind[:classifier]
+  }
+
+  private static RepoId parse (String text) {
+    String[] bits = text.split(":", 5);
+    if (bits.length < 4) throw new IllegalArgumentException("Invalid locked id: " + text);
+    return new RepoId(bits[0], bits[1], bits[2], bits[3], bits.length > 4 ? bits[4] : null);
+  }
+
+  private static final String HEADER = "# pacman depends lockfile; do not edit";
+  private static final String HASH = "hash: ";
+}
@@ -0,0 +1,197 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Provides read access to the entries of a jar file via a memory mapping of the entire file. The
+ * central directory is parsed once into a compact index (one {@code long} per entry, combining a
+ * hash of the entry name with the offset of its central directory record), so lookups do no
+ * allocation beyond encoding the entry name. Stored (uncompressed) entries are returned as slices
+ * of the mapped file; deflated entries are inflated into a heap buffer, which costs as much as
+ * reading them via {@link java.util.jar.JarFile}, so only stored jars benefit from mapping. Use
+ * {@link #readStored} to read only those entries that can be served without copying.
+ *
+ * <p>Zip64 archives and files larger than 2GB (which cannot be mapped into a single buffer) are
+ * not supported; the constructor throws {@link IOException} for those, and callers should fall
+ * back to {@link java.util.jar.JarFile}.</p>
+ */
+public class MappedJar {
+
+  /** The path to the jar file we're reading. */
+  public final Path path;
+
+  public MappedJar (Path path) throws IOException {
+    this.path = path;
+    try (FileChannel chan = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (chan.size() > Integer.MAX_VALUE) throw new IOException("Jar too large to map: " + path);
+      MappedByteBuffer buf = chan.map(FileChannel.MapMode.READ_ONLY, 0, chan.size());
+      buf.order(ByteOrder.LITTLE_ENDIAN);
+      _buf = buf;
+    }
+
+    // locate the end of central directory record, which is followed by a comment of up to 64k
+    int eocd = -1;
+    for (int pos = _buf.limit()-EOCD_SIZE, min = Math.max(0, pos-0xFFFF); pos >= min; pos--) {
+      if (_buf.getInt(pos) == EOCD_SIG) { eocd = pos; break; }
+    }
+    if (eocd < 0) throw new IOException("Missing end of central directory: " + path);
+    int count = _buf.getShort(eocd+10) & 0xFFFF;
+    long cdOffset = _buf.getInt(eocd+16) & 0xFFFFFFFFL;
+    if (count == 0xFFFF || cdOffset == 0xFFFFFFFFL) throw new IOException(
+      "Zip64 archives not supported: " + path);
+
+    // index the central directory: hash in the high 32 bits, record offset in the low 32
+    _index = new long[count];
+    int pos = (int)cdOffset;
+    for (int ii = 0; ii < count; ii++) {
+      if (_buf.getInt(pos) != CEN_SIG) throw new IOException("Corrupt central directory: " + path);
+      int nameLen = _buf.getShort(pos+28) & 0xFFFF;
+      int extraLen = _buf.getShort(pos+30) & 0xFFFF;
+      int commentLen = _buf.getShort(pos+32) & 0xFFFF;
+      _index[ii] = ((long)hash(_buf, pos+CEN_SIZE, nameLen) << 32) | pos;
+      pos += CEN_SIZE + nameLen + extraLen + commentLen;
+    }
+    Arrays.sort(_index);
+  }
+
+  /** Returns the contents of the entry named {@code name}, or null if no such entry exists. The
+    * returned buffer may be a read-only view of the mapped file. */
+  public ByteBuffer read (String name) throws IOException {
+    int cen = find(name.getBytes(StandardCharsets.UTF_8));
+    return (cen < 0) ? null : read(name, cen);
+  }
+
+  /** Returns true if this jar contains an entry named {@code name}. */
+  public boolean contains (String name) {
+    return find(name.getBytes(StandardCharsets.UTF_8)) >= 0;
+  }
+
+  /** Returns the contents of the entry named {@code name} as a read-only view of the mapped file,
+    * or null if no such entry exists or it is compressed. */
+  public ByteBuffer readStored (String name) throws IOException {
+    int cen = find(name.getBytes(StandardCharsets.UTF_8));
+    return (cen < 0 || (_buf.getShort(cen+10) & 0xFFFF) != STORED) ? null : read(name, cen);
+  }
+
+  private ByteBuffer read (String name, int cen) throws IOException {
+    int method = _buf.getShort(cen+10) & 0xFFFF;
+    int csize = _buf.getInt(cen+20), usize = _buf.getInt(cen+24);
+    int loc = _buf.getInt(cen+42);
+    if (_buf.getInt(loc) != LOC_SIG) throw new IOException("Corrupt entry " + name + ": " + path);
+    int data = loc + LOC_SIZE + (_buf.getShort(loc+26) & 0xFFFF) + (_buf.getShort(loc+28) & 0xFFFF);
+
+    switch (method) {
+    case STORED:
+      ByteBuffer slice = _buf.duplicate();
+      slice.position(data).limit(data+usize);
+      return slice.slice().asReadOnlyBuffer();
+
+    case DEFLATED:
+      byte[] input = new byte[csize];
+      ByteBuffer src = _buf.duplicate();
+      src.position(data);
+      src.get(input);
+      byte[] output = new byte[usize];
+      Inflater inf = new Inflater(true);
+      try {
+        inf.setInput(input);
+        int read = 0;
+        while (read < usize && !inf.finished()) {
+          int got = inf.inflate(output, read, usize-read);
+          if (got == 0 && (inf.needsInput() || inf.needsDictionary())) break;
+          read += got;
+        }
+        if (read != usize) throw new IOException("Truncated entry " + name + ": " + path);
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupt entry " + name + ": " + path, e);
+      } finally {
+        inf.end();
+      }
+      return ByteBuffer.wrap(output);
+
+    default:
+      throw new IOException("Unsupported compression method " + method + " for " + name);
+    }
+  }
+
+  /** Returns this jar's manifest, or null if it has none. The manifest is read on first request. */
+  public synchronized Manifest manifest () throws IOException {
+    if (!_readManifest) {
+      ByteBuffer bytes = read(JarFile.MANIFEST_NAME);
+      if (bytes != null) {
+        byte[] data = new byte[bytes.remaining()];
+        bytes.get(data);
+        _manifest = new Manifest(new ByteArrayInputStream(data));
+      }
+      _readManifest = true;
+    }
+    return _manifest;
+  }
+
+  @Override public String toString () {
+    return "MappedJar(" + path + ", " + _index.length + " entries)";
+  }
+
+  private int find (byte[] name) {
+    long key = (long)hash(name) << 32;
+    // find the first index entry with our hash, then check all entries that share it
+    int low = 0, high = _index.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (_index[mid] < key) low = mid+1;
+      else high = mid;
+    }
+    for (int ii = low; ii < _index.length && (_index[ii] & HASH_MASK) == key; ii++) {
+      int cen = (int)_index[ii];
+      if (nameEquals(cen, name)) return cen;
+    }
+    return -1;
+  }
+
+  private boolean nameEquals (int cen, byte[] name) {
+    if ((_buf.getShort(cen+28) & 0xFFFF) != name.length) return false;
+    for (int ii = 0, pos = cen+CEN_SIZE; ii < name.length; ii++, pos++) {
+      if (_buf.get(pos) != name[ii]) return false;
+    }
+    return true;
+  }
+
+  // FNV-1a over the raw (UTF-8) name bytes
+  private static int hash (ByteBuffer buf, int pos, int len) {
+    int hash = 0x811C9DC5;
+    for (int ii = 0; ii < len; ii++) hash = (hash ^ (buf.get(pos+ii) & 0xFF)) * 0x01000193;
+    return hash;
+  }
+  private static int hash (byte[] bytes) {
+    int hash = 0x811C9DC5;
+    for (byte b : bytes) hash = (hash ^ (b & 0xFF)) * 0x01000193;
+    return hash;
+  }
+
+  private final ByteBuffer _buf;
+  private final long[] _index;
+  private Manifest _manifest;
+  private boolean _readManifest;
+
+  private static final int EOCD_SIG = 0x06054b50, CEN_SIG = 0x02014b50, LOC_SIG = 0x04034b50;
+  private static final int EOCD_SIZE = 22, CEN_SIZE = 46, LOC_SIZE = 30;
+  private static final int STORED = 0, DEFLATED = 8;
+  private static final long HASH_MASK = 0xFFFFFFFF00000000L;
+}
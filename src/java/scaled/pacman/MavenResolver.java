@@ -4,57 +4,234 @@
 
 package scaled.pacman;
 
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import mfetcher.Coord;
 import mfetcher.DependencyManager;
 import impl.org.eclipse.aether.RepositoryEvent;
 import impl.org.eclipse.aether.transfer.TransferEvent;
+import impl.org.eclipse.aether.transfer.TransferResource;
 
 public class MavenResolver {
 
   public static final List<String> REPOS = Arrays.asList(
     "central", "http://repo.gradle.org/gradle/libs-releases-local/");
 
-  public final DependencyManager depmgr = new DependencyManager(RepoId.m2repo, REPOS, false, false) {
-    @Override protected void onRepositoryEvent (String method, RepositoryEvent event) {
-      if (method.endsWith("Invalid") || method.endsWith("Missing")) {
-        Log.log("MavenResolver." + method + " " + event);
-      // } else if (method.equals("artifactResolved")) {
-      //   Log.log("MavenResolver." + method + " " + event);
+  /** Tracks misses and failures of our remote repositories. This is consulted before every
+    * resolution: Aether is given only the repositories that are not cooling down after repeated
+    * failures. Known misses are skipped by {@link #fetcher}; Aether offers no way to skip
+    * individual artifacts in a repository, but remembers its own misses in the local repository.
+    */
+  public final RepoHealth health;
+
+  /** The dependency manager used for the most recent resolution. This is replaced whenever the
+    * set of available repositories changes (see {@link #health}). */
+  public volatile DependencyManager depmgr;
+
+  /** Used to download artifacts in parallel prior to resolution, if enabled. */
+  public final ArtifactFetcher fetcher;
+
+  public MavenResolver () {
+    this(null);
+  }
+
+  /**
+   * @param healthFile the file in which to persist repository health, or null.
+   */
+  public MavenResolver (Path healthFile) {
+    health = new RepoHealth(healthFile, Props.missTTL*60*1000L, Props.repoCooldown*60*1000L);
+
+    depmgr = dependencyManager();
+    fetcher = new ArtifactFetcher(RepoId.m2repo, REPOS, Props.fetchThreads, health);
+  }
+
+  /** Configures whether we resolve solely from the local repository, without contacting remote
+    * repositories. Defaults to {@link Props#offline}. */
+  public void setOffline (boolean offline) {
+    _offline = offline;
+  }
+
+  // returns a dependency manager that uses only the repositories which have not been failing of
+  // late; the current manager is reused if that set has not changed
+  private DependencyManager dependencyManager () {
+    List<String> repos = health.available(REPOS);
+    if (depmgr != null && repos.equals(_depmgrRepos)) return depmgr;
+    if (repos.size() < REPOS.size()) Log.log("Skipping failing repositories",
+                                             "repos", REPOS, "using", repos);
+    _depmgrRepos = repos;
+    DependencyManager mgr = new DependencyManager(RepoId.m2repo, repos, false, false) {
+      @Override protected void onRepositoryEvent (String method, RepositoryEvent event) {
+        if (method.endsWith("Invalid") || method.endsWith("Missing")) {
+          Log.log("MavenResolver." + method + " " + event);
+        // } else if (method.equals("artifactResolved")) {
+        //   Log.log("MavenResolver." + method + " " + event);
+        }
       }
-    }
-    @Override protected void onTransferEvent (String method, TransferEvent event) {
-      if (method.endsWith("Corrupted") || method.endsWith("Failed") ||
-          method.endsWith("Succeeded")) {
-        Log.log("MavenResolver." + method + " " + event);
+      @Override protected void onTransferEvent (String method, TransferEvent event) {
+        if (method.endsWith("Corrupted") || method.endsWith("Failed") ||
+            method.endsWith("Succeeded")) {
+          Log.log("MavenResolver." + method + " " + event);
+        }
+        if (method.equals("transferFailed")) noteFailed(event);
+        else if (method.equals("transferSucceeded")) {
+          health.noteSuccess(event.getResource().getRepositoryUrl());
+        }
+      }
+    };
+    configureTimeouts(mgr);
+    return mgr;
+  }
+
+  // DependencyManager does not expose its Aether session, so we find it reflectively and set our
+  // timeouts in its config; these apply only to this session, unlike the equivalent system props
+  private static void configureTimeouts (DependencyManager depmgr) {
+    for (Class<?> clazz = depmgr.getClass(); clazz != null; clazz = clazz.getSuperclass()) {
+      for (Field field : clazz.getDeclaredFields()) {
+        if (Modifier.isStatic(field.getModifiers()) ||
+            !field.getType().getSimpleName().endsWith("RepositorySystemSession")) continue;
+        try {
+          field.setAccessible(true);
+          Object session = field.get(depmgr);
+          if (session == null) continue;
+          Method setter = session.getClass().getMethod(
+            "setConfigProperty", String.class, Object.class);
+          setter.invoke(session, CONNECT_TIMEOUT, Props.connectTimeout*1000);
+          setter.invoke(session, REQUEST_TIMEOUT, Props.readTimeout*1000);
+          return;
+        } catch (Exception e) {
+          Log.log("Unable to configure Aether timeouts", "field", field, "error", e);
+        }
       }
     }
-  };
+    if (Props.debug) Log.log("No Aether session found; using its default timeouts.");
+  }
 
   public Map<RepoId,Path> resolve (RepoId id) {
     return resolve(Arrays.asList(id));
   }
 
+  /** Resolves {@code ids} and their transitive depends. Results are memoized for the lifetime of
+    * this resolver, keyed on the exact (ordered) list of ids, so modules which declare the same
+    * Maven depends share a single resolution. Failed resolutions are not memoized. Lists which
+    * merely overlap are resolved separately; there is no cache of the shared parts of their
+    * graphs, beyond the local repository itself. */
   public Map<RepoId,Path> resolve (List<RepoId> ids) {
+    // if another thread is already resolving these ids, wait for it rather than duplicate its work
+    CompletableFuture<Map<RepoId,Path>> result = new CompletableFuture<>();
+    CompletableFuture<Map<RepoId,Path>> prev = _resolved.putIfAbsent(new ArrayList<>(ids), result);
+    if (prev != null) return prev.join();
+
+    Map<RepoId,Path> results = null;
+    try {
+      results = resolveUncached(ids);
+    } finally {
+      if (results == null) {
+        _resolved.remove(ids, result);
+        results = new LinkedHashMap<>();
+      } else results = Collections.unmodifiableMap(results);
+      result.complete(results);
+    }
+    return results;
+  }
+
+  /** Resolves each of the distinct lists in {@code idLists} that has not already been resolved.
+    * Lists are resolved separately because Aether mediates versions across everything in a single
+    * resolution, so resolving a union would change the results for individual modules. */
+  public void resolveAll (Iterable<List<RepoId>> idLists) {
+    Set<List<RepoId>> pending = new LinkedHashSet<>();
+    for (List<RepoId> ids : idLists) if (!_resolved.containsKey(ids)) pending.add(ids);
+    if (!pending.isEmpty()) Log.log("Resolving " + pending.size() + " distinct Maven depend sets.");
+    for (List<RepoId> ids : pending) resolve(ids);
+  }
+
+  /** Downloads the artifacts needed to resolve each of {@code idLists} (see {@link
+    * ArtifactFetcher#prefetch}). The lists are walked concurrently, and downloads are shared
+    * between them. */
+  public void prefetch (Collection<List<RepoId>> idLists) {
+    if (idLists.isEmpty()) return;
+    ExecutorService exec = Executors.newFixedThreadPool(
+      Math.min(idLists.size(), Props.fetchThreads));
+    try {
+      List<Future<?>> walks = new ArrayList<>();
+      for (List<RepoId> ids : idLists) walks.add(exec.submit(() -> fetcher.prefetch(ids)));
+      for (Future<?> walk : walks) walk.get();
+    } catch (InterruptedException | ExecutionException e) {
+      Log.log("MavenResolver.prefetch: failure", "ids", idLists, e);
+    } finally {
+      exec.shutdown();
+    }
+  }
+
+  // returns null if resolution failed
+  private Map<RepoId,Path> resolveUncached (List<RepoId> ids) {
+    // if we're offline, or have been asked to, and everything we need is in our local repository
+    // (and uses only POM features that we model), skip Aether entirely
+    if (_offline || Props.localResolve) try {
+      return new LocalResolver(RepoId.m2repo, _offline).resolve(ids);
+    } catch (IOException e) {
+      if (_offline) {
+        Log.log("MavenResolver.resolve: unable to resolve offline", "ids", ids,
+                "error", e.getMessage());
+        // report our direct depends as missing
+        Map<RepoId,Path> missing = new LinkedHashMap<>();
+        for (RepoId id : ids) missing.put(id, null);
+        return missing;
+      }
+      if (Props.debug) Log.log("Resolving via Aether", "ids", ids, "reason", e.getMessage());
+    }
+
+    // download everything we'll need in parallel, so that Aether finds it all locally
+    if (Props.parallelFetch) fetcher.prefetch(ids);
     List<Coord> coords = new ArrayList<>();
     for (RepoId id : ids) coords.add(toCoord(id));
     Map<RepoId,Path> results = new LinkedHashMap<>();
     try {
-      for (Map.Entry<Coord,Path> entry : depmgr.resolveDependencies(coords).entrySet()) {
+      // we don't know that DependencyManager is thread-safe, so only one resolution at a time
+      Map<Coord,Path> resolved;
+      synchronized (_aetherLock) {
+        depmgr = dependencyManager();
+        resolved = depmgr.resolveDependencies(coords);
+      }
+      for (Map.Entry<Coord,Path> entry : resolved.entrySet()) {
         results.put(toRepoId(entry.getKey()), entry.getValue());
       }
     } catch (Throwable t) {
       Log.log("MavenResolver.resolve: dependency manager failure",
               "ids", ids, "coords", coords, t);
+      return null;
+    } finally {
+      health.save();
     }
     return results;
   }
 
+  private void noteFailed (TransferEvent event) {
+    TransferResource rsrc = event.getResource();
+    Exception error = event.getException();
+    // a not found is a miss, anything else means the repository itself is having problems
+    if (error != null && error.getClass().getSimpleName().contains("NotFound")) {
+      health.noteMissing(rsrc.getRepositoryUrl(), rsrc.getResourceName());
+    } else health.noteFailure(rsrc.getRepositoryUrl());
+  }
+
   private static Coord toCoord (RepoId id) {
     Coord coord = new Coord(id.groupId, id.artifactId, id.version, id.kind);
     coord.classifier = id.classifier;
@@ -64,4 +241,17 @@ public class MavenResolver {
   private static RepoId toRepoId (Coord coord) {
     return new RepoId(coord.groupId, coord.artifactId, coord.version, coord.kind, coord.classifier);
   }
+
+  private volatile boolean _offline = Props.offline;
+  private final Map<List<RepoId>,CompletableFuture<Map<RepoId,Path>>> _resolved =
+    new ConcurrentHashMap<>();
+
+  // the repositories used by depmgr; depmgr is only replaced while holding _aetherLock (or in our
+  // constructor)
+  private List<String> _depmgrRepos;
+  private final Object _aetherLock = new Object();
+
+  // Aether's ConfigurationProperties.CONNECT_TIMEOUT and REQUEST_TIMEOUT (in millis)
+  private static final String CONNECT_TIMEOUT = "aether.connector.connectTimeout";
+  private static final String REQUEST_TIMEOUT = "aether.connector.requestTimeout";
 }
@@ -7,11 +7,14 @@ package scaled.pacman;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /** Contains runtime metadata for one of a package's modules. */
 public class Module {
@@ -39,6 +42,10 @@ public class Module {
   /** This module's depends. */
   public final List<Depend> depends;
 
+  /** The JDK with which to build this module (see {@link JDKRegistry#byName}), or null to build
+    * with the running JDK. Defaults to the package's JDK. */
+  public final String jdk;
+
   /** This module's intra-package depends. */
   public final Set<String> localDepends = new HashSet<>();
 
@@ -50,6 +57,8 @@ public class Module {
     this.source = source;
     this.depends = cfg.resolveDepends();
     if (isDefault()) depends.addAll(pkg.depends); // inherit our package depends
+    String jdk = cfg.resolveOptional("jdk");
+    this.jdk = (jdk == null) ? pkg.jdk : jdk;
 
     // compute our local depends
     for (Depend dep : depends) {
@@ -69,15 +78,110 @@ public class Module {
     return pkg.source.equals(source.packageSource());
   }
 
+  /** Returns this module's generation. This starts at zero and is incremented every time the
+    * module is {@link #invalidate}d. */
+  public int generation () {
+    return _generation;
+  }
+
+  /** Discards this module's cached depends and class loader. They will be recreated on next use.
+    * This is generally called via {@link PackageRepo#invalidate} which also invalidates all
+    * modules which depend on this module. The old loader is not closed, as classes loaded from it
+    * may still be in use; it is released for collection once nothing references those classes. */
+  public void invalidate () {
+    synchronized (_lock) {
+      _depends = null;
+      _resolving = null;
+      _loader = null;
+      _generation++;
+    }
+  }
+
+  /** Discards this module's cached class loader, but not its depends. This is used when the
+    * module (or a module on which it depends) is rebuilt, which changes its classes (and thus its
+    * exported packages), but not its depends. */
+  public void invalidateLoader () {
+    synchronized (_lock) {
+      Depends depends = _depends;
+      if (depends != null) depends.invalidateExports();
+      _loader = null;
+      _generation++;
+    }
+  }
+
+  /** Returns the ids of this module's (non-exec) Maven depends, in declaration order. */
+  public List<RepoId> mavenDepends () {
+    List<RepoId> ids = new ArrayList<>();
+    for (Depend dep : depends) {
+      if (dep.scope != Depend.Scope.EXEC && dep.id instanceof RepoId) ids.add((RepoId)dep.id);
+    }
+    return ids;
+  }
+
+  /** Returns this module's resolved depends. These are resolved on first use and cached. This
+    * may be called from any thread; only one thread will resolve a module's depends, and any
+    * others wait for it. No lock is held during resolution (which may block on Maven). */
   public Depends depends (Depends.Resolver resolve) {
-    if (_depends == null) _depends = new Depends(this, resolve);
-    return _depends;
+    Depends depends = _depends;
+    if (depends != null) return depends;
+
+    CompletableFuture<Depends> result;
+    boolean resolver = false;
+    int generation;
+    synchronized (_lock) {
+      if ((depends = _depends) != null) return depends;
+      if (_resolving == null) {
+        _resolving = new CompletableFuture<>();
+        _resolvingThread = Thread.currentThread();
+        resolver = true;
+      } else if (_resolvingThread == Thread.currentThread()) {
+        throw new IllegalStateException("Module depend cycle involving " + this);
+      }
+      result = _resolving;
+      generation = _generation;
+    }
+
+    if (!resolver) {
+      try { return result.join(); }
+      catch (CompletionException e) {
+        Throwable cause = e.getCause();
+        throw (cause instanceof RuntimeException) ? (RuntimeException)cause : e;
+      }
+    }
+
+    try {
+      depends = new Depends(this, resolve);
+    } catch (Throwable t) {
+      synchronized (_lock) { if (_resolving == result) _resolving = null; }
+      result.completeExceptionally(t);
+      throw t;
+    }
+    synchronized (_lock) {
+      // if we were invalidated during resolution, our result is returned but not cached
+      if (_generation == generation) _depends = depends;
+      if (_resolving == result) _resolving = null;
+    }
+    result.complete(depends);
+    return depends;
   }
 
-  /** Returns a class loader for loading classes from this module and its depends. */
+  /** Returns a class loader for loading classes from this module and its depends. This may be
+    * called from any thread. */
   public ModuleLoader loader (Depends.Resolver resolve) {
-    if (_loader == null) _loader = new ModuleLoader(resolve, depends(resolve));
-    return _loader;
+    ModuleLoader loader = _loader;
+    if (loader == null) {
+      // resolve our depends first, so that we don't hold our lock while doing so
+      Depends depends = depends(resolve);
+      synchronized (_lock) {
+        // our module depends' loaders are created lazily by ours, so we hold no lock while doing
+        // so; if we were invalidated since resolving our depends, don't cache the stale loader
+        if ((loader = _loader) == null) {
+          loader = new ModuleLoader(resolve, depends);
+          if (_depends == depends) _loader = loader;
+        }
+      }
+    }
+    return loader;
   }
 
   public Path mainDir () { return root.resolve("src"); }
@@ -102,6 +206,11 @@ public class Module {
     return pkg.name + "#" + name;
   }
 
-  private ModuleLoader _loader;
-  private Depends _depends;
+  private final Object _lock = new Object();
+  private volatile ModuleLoader _loader;
+  private volatile Depends _depends;
+  // the in-progress resolution of our depends (and the thread doing it), if any; guarded by _lock
+  private CompletableFuture<Depends> _resolving;
+  private Thread _resolvingThread;
+  private volatile int _generation;
 }
@@ -4,27 +4,54 @@
 
 package scaled.pacman;
 
+import java.io.IOException;
 import java.io.PrintStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.CodeSource;
+import java.security.cert.Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.jar.Manifest;
 
 /**
  * Loads classes for a particular module. A module has two kinds of depends: binary depends, which
  * are private to the package, and will be searched first, and module depends, wherein a Scaled
  * package module depends on another module (possibly in a different package).
+ *
+ * <p>Module loaders are parallel capable: classes are loaded under a per-class-name lock, so
+ * multiple threads can load classes through the same loader concurrently.</p>
  */
 public class ModuleLoader extends URLClassLoader {
 
+  static { registerAsParallelCapable(); }
+
+  /** The maximum number of class names remembered as missing by each loader. */
+  public static final int MAX_MISSING = 1024;
+
   public final Module mod;
-  public final ClassLoader[] delegates;
+
+  /** This loader's delegates, in the order described by {@link #delegates()}. Delegates are
+    * created lazily, so an entry is null until a lookup has been routed to that delegate.
+    * @deprecated use {@link #delegates()}, which creates any delegates not yet in use. */
+  @Deprecated public final ClassLoader[] delegates;
+
+  /** The generation of {@link #mod} when this loader was created. */
+  public final int generation;
 
   public static URL toURL (Path path) {
     try { return path.toUri().toURL(); }
@@ -32,16 +59,45 @@ public class ModuleLoader extends URLClassLoader {
   }
 
   public ModuleLoader (Depends.Resolver resolve, Depends depends) {
-    super(toURLs(depends.mod.classpath(resolve.ignoreModuleJar()), depends.binaryDeps.keySet()),
+    this(resolve, depends, sharedLoaders(resolve, depends));
+  }
+
+  private ModuleLoader (Depends.Resolver resolve, Depends depends, List<SharedLoader> shared) {
+    super(toURLs(depends.mod.classpath(resolve.ignoreModuleJar()), unshared(depends, shared)),
           // we need to explicitly pass our classloader as the parent, as the system classloader
           // contains just the pacman bootstrap code, but we need pacman (and mfetcher) to be in the
           // classloader chain because the alternative is classloader madness
           ModuleLoader.class.getClassLoader());
     this.mod = depends.mod;
-    this.delegates = new ClassLoader[depends.systemDeps.size()+depends.moduleDeps.size()];
-    int ii = 0;
-    for (Path path : depends.systemDeps.keySet()) delegates[ii++] = resolve.systemLoader(path);
-    for (Depends dep : depends.moduleDeps) delegates[ii++] = dep.mod.loader(resolve);
+    this.generation = mod.generation();
+    _resolve = resolve;
+    _depends = depends;
+    _shared = shared;
+    _sharedCount = shared.size();
+    _systemPaths = new ArrayList<>(depends.systemDeps.keySet());
+    _ownPaths = new ArrayList<>();
+    _ownPaths.add(depends.mod.classpath(resolve.ignoreModuleJar()));
+    _ownPaths.addAll(unshared(depends, shared));
+    // our delegates are created on demand, the first time a lookup is routed to them; this avoids
+    // creating loaders (and opening jars) for parts of the module graph that are never used
+    _delegates = new AtomicReferenceArray<>(
+      _sharedCount+_systemPaths.size()+depends.moduleDeps.size());
+    this.delegates = new ClassLoader[_delegates.length()];
+  }
+
+  /** Returns all of this loader's delegates: the shared loaders for our binary depends (if any),
+    * system depend loaders, then module loaders.
+    * Note: this forces the creation of any delegates that have not yet been used. */
+  public List<ClassLoader> delegates () {
+    List<ClassLoader> delegates = new ArrayList<>();
+    for (int ii = 0; ii < _delegates.length(); ii++) delegates.add(delegate(ii));
+    return delegates;
+  }
+
+  /** Returns true if our module has been invalidated (generally because it was rebuilt) since
+    * this loader was created. */
+  public boolean isStale () {
+    return generation != mod.generation();
   }
 
   public Source source () {
@@ -54,7 +110,7 @@ public class ModuleLoader extends URLClassLoader {
     for (URL url : getURLs()) {
       System.out.println(depth + url);
     }
-    for (ClassLoader delegate : delegates) {
+    for (ClassLoader delegate : delegates()) {
       if (delegate instanceof ModuleLoader) {
         ((ModuleLoader)delegate).dump(depth);
       } else if (delegate instanceof URLClassLoader) {
@@ -66,31 +122,254 @@ public class ModuleLoader extends URLClassLoader {
     }
   }
 
+  /** Returns the packages that can be loaded by this loader or any of its delegates. */
+  public Set<String> exportedPackages () {
+    return _depends.exportedPackages();
+  }
+
   @Override public URL getResource (String path) {
-    URL rsrc = super.getResource(path);
-    if (rsrc != null) return rsrc;
-    for (ClassLoader loader : delegates) {
-      URL drsrc = loader.getResource(path);
-      if (drsrc != null) return drsrc;
+    URL rsrc = findResource(path, PackageIndex.resourcePackage(path));
+    if (rsrc == null && refreshIndices(path)) {
+      rsrc = findResource(path, PackageIndex.resourcePackage(path));
     }
-    return null;
+    return rsrc;
+  }
+
+  @Override protected Class<?> loadClass (String name, boolean resolve)
+  throws ClassNotFoundException {
+    Class<?> clazz = super.loadClass(name, resolve);
+    // note every class that code in our module can load, including those which come from our
+    // parent (the JDK) or our delegates, not just those that we define
+    LoadProfile.noteLoaded(name);
+    return clazz;
   }
 
   @Override protected Class<?> findClass (String name) throws ClassNotFoundException {
     // System.err.println("Seeking "+ name +" in "+ source);
-    try { return super.findClass(name); }
-    catch (ClassNotFoundException cnfe) {} // check our module deps
-    for (ClassLoader loader : delegates) {
-      try { return loader.loadClass(name); }
-      catch (ClassNotFoundException cnfe) {} // keep going
+    // reflection-heavy libraries often probe repeatedly for optional classes; fail those fast
+    // (unless an incremental compile has since added the class, see refreshIndices)
+    String pkg = PackageIndex.classPackage(name);
+    Class<?> clazz = (_missing.get(name) != null) ? null : findClass(name, pkg);
+    if (clazz == null && refreshIndices(name.replace('.', '/').concat(".class"))) {
+      _missing.remove(name);
+      clazz = findClass(name, pkg);
     }
-    throw new ClassNotFoundException(source() + " missing dependency: " + name);
+    if (clazz != null) return clazz;
+    _missing.put(name, Boolean.TRUE);
+    throw missing(name);
   }
 
   @Override public String toString () {
     return "ModLoader(" + source() + ")";
   }
 
+  private URL findResource (String path, String pkg) {
+    // if we have this package ourselves, super will check our parent and then our URLs, otherwise
+    // we check only our parent and then move on to the delegates which export this package
+    URL rsrc = ownPackages().contains(pkg) ? super.getResource(path) :
+      getParent().getResource(path);
+    if (rsrc != null) return rsrc;
+    for (int idx : routes().getOrDefault(pkg, NO_LOADERS)) {
+      URL drsrc = delegate(idx).getResource(path);
+      if (drsrc != null) return drsrc;
+    }
+    return null;
+  }
+
+  private Class<?> findClass (String name, String pkg) {
+    if (ownPackages().contains(pkg)) {
+      if (Props.mappedJars) {
+        Class<?> clazz = findMappedClass(name);
+        if (clazz != null) return clazz;
+      }
+      try { return super.findClass(name); }
+      catch (ClassNotFoundException cnfe) {} // check our module deps
+    }
+    // only ask the delegates whose index says that they can load classes in this package
+    for (int idx : routes().getOrDefault(pkg, NO_LOADERS)) {
+      try { return delegate(idx).loadClass(name); }
+      catch (ClassNotFoundException cnfe) {} // keep going
+    }
+    return null;
+  }
+
+  // when loading from classes directories, an incremental compile may add packages after our
+  // package indices were computed; if the missed resource now exists in the classes directory of
+  // any module in our graph, we discard the indices (ours and the exports of our depends), so
+  // that a retry sees the new package; delegates which are module loaders do likewise
+  private boolean refreshIndices (String path) {
+    if (!_resolve.ignoreModuleJar()) return false;
+    List<Depends> graph = new ArrayList<>();
+    Set<Module> seen = new HashSet<>();
+    graph.add(_depends);
+    seen.add(mod);
+    boolean found = false;
+    for (int ii = 0; ii < graph.size(); ii++) {
+      Depends deps = graph.get(ii);
+      if (Files.exists(deps.mod.classesDir().resolve(path))) found = true;
+      for (Depends dep : deps.moduleDeps) if (seen.add(dep.mod)) graph.add(dep);
+    }
+    if (!found) return false;
+    for (Depends deps : graph) deps.invalidateExports();
+    synchronized (_initLock) {
+      _ownPkgs = null;
+      _routes = null;
+    }
+    return true;
+  }
+
+  private ClassNotFoundException missing (String name) {
+    return new ClassNotFoundException(source() + " missing dependency: " + name);
+  }
+
+  // the lazily computed indices below are read on every lookup; they're volatile and initialized
+  // under _initLock rather than our own monitor, so once they exist, lookups take no lock
+
+  private Set<String> ownPackages () {
+    Set<String> ownPkgs = _ownPkgs;
+    if (ownPkgs == null) synchronized (_initLock) {
+      if ((ownPkgs = _ownPkgs) == null) {
+        ownPkgs = new HashSet<>();
+        for (Path path : _ownPaths) ownPkgs.addAll(PackageIndex.forPath(path));
+        _ownPkgs = ownPkgs;
+      }
+    }
+    return ownPkgs;
+  }
+
+  // defines name directly from a memory mapped jar, if it is stored uncompressed in one of our
+  // jars; compressed classes gain nothing from mapping, so we leave those to URLClassLoader
+  private Class<?> findMappedClass (String name) {
+    String path = name.replace('.', '/').concat(".class");
+    MappedJar[] jars = mappedJars();
+    for (MappedJar jar : jars) {
+      if (jar == null) continue;
+      try {
+        ByteBuffer bytes = jar.readStored(path);
+        if (bytes == null) {
+          // if this jar has a compressed copy, it shadows any in later jars, so defer entirely
+          if (jar.contains(path)) return null;
+          continue;
+        }
+        URL url = toURL(jar.path);
+        int didx = name.lastIndexOf('.');
+        if (didx > 0) {
+          String pkgName = name.substring(0, didx);
+          if (_mappedPkgs.add(pkgName)) {
+            // define the package using the jar's manifest, as URLClassLoader would
+            Manifest man = jar.manifest();
+            try {
+              if (man != null) definePackage(pkgName, man, url);
+              else definePackage(pkgName, null, null, null, null, null, null, null);
+            } catch (IllegalArgumentException iae) {} // already defined via URLClassLoader
+          }
+        }
+        CodeSource cs = new CodeSource(url, (Certificate[])null);
+        return defineClass(name, bytes, cs);
+      } catch (IOException ioe) {
+        Log.log("Failed to read " + path + " from " + jar.path, ioe);
+      }
+    }
+    return null;
+  }
+
+  private MappedJar[] mappedJars () {
+    MappedJar[] mapped = _mapped;
+    if (mapped == null) synchronized (_initLock) {
+      if ((mapped = _mapped) == null) {
+        mapped = new MappedJar[_ownPaths.size()];
+        for (int ii = 0; ii < mapped.length; ii++) {
+          Path path = _ownPaths.get(ii);
+          // directories (and any jars we cannot map) are left to URLClassLoader
+          if (Files.isRegularFile(path)) {
+            try { mapped[ii] = new MappedJar(path); }
+            catch (IOException ioe) { Log.log("Unable to map " + path + ": " + ioe); }
+          }
+        }
+        _mapped = mapped;
+      }
+    }
+    return mapped;
+  }
+
+  private ClassLoader delegate (int idx) {
+    ClassLoader loader = _delegates.get(idx);
+    if (loader == null) {
+      // this is done without holding any lock: module and system loaders are themselves cached,
+      // so racing threads obtain the same loader
+      int sysEnd = _sharedCount + _systemPaths.size();
+      if (idx < _sharedCount) loader = _shared.get(idx);
+      else if (idx < sysEnd) loader = _resolve.systemLoader(_systemPaths.get(idx-_sharedCount));
+      else loader = _depends.moduleDeps.get(idx-sysEnd).mod.loader(_resolve);
+      if (!_delegates.compareAndSet(idx, null, loader)) loader = _delegates.get(idx);
+      delegates[idx] = loader;
+    }
+    return loader;
+  }
+
+  // maps each package provided by our delegates to the indices of the delegates that provide it,
+  // in search order; this uses only the depends metadata, so no delegate loaders are created
+  private Map<String,int[]> routes () {
+    Map<String,int[]> routes = _routes;
+    if (routes == null) synchronized (_initLock) {
+      if ((routes = _routes) == null) routes = _routes = computeRoutes();
+    }
+    return routes;
+  }
+
+  private Map<String,int[]> computeRoutes () {
+    Map<String,int[]> routes = new HashMap<>();
+    int sysEnd = _sharedCount + _systemPaths.size();
+    for (int ii = 0; ii < _delegates.length(); ii++) {
+      Set<String> pkgs;
+      if (ii < _sharedCount) {
+        pkgs = new HashSet<>();
+        for (Path path : _shared.get(ii).paths) pkgs.addAll(PackageIndex.forPath(path));
+      }
+      else if (ii < sysEnd) pkgs = PackageIndex.forPath(_systemPaths.get(ii-_sharedCount));
+      else pkgs = _depends.moduleDeps.get(ii-sysEnd).exportedPackages();
+      for (String pkg : pkgs) {
+        int[] idxs = routes.get(pkg);
+        if (idxs == null) idxs = new int[] { ii };
+        else {
+          idxs = Arrays.copyOf(idxs, idxs.length+1);
+          idxs[idxs.length-1] = ii;
+        }
+        routes.put(pkg, idxs);
+      }
+    }
+    return routes;
+  }
+
+  private static List<SharedLoader> sharedLoaders (Depends.Resolver resolve, Depends depends) {
+    if (depends.binaryDeps.isEmpty()) return Collections.emptyList();
+    // our binary depends can only be loaded by a shared loader if they need nothing from the
+    // binary depends we inherit from our module depends (those show up in our filtered depends);
+    // filtered system depends are fine because system depend loaders are shared by everyone
+    List<Path> systemPaths = new ArrayList<>(depends.systemDeps.keySet());
+    boolean closed = true;
+    for (Map.Entry<Path,Depend.Id> entry : depends.filteredDeps.entrySet()) {
+      Depend.Id id = entry.getValue();
+      boolean system = (id instanceof SystemId) ||
+        ((id instanceof RepoId) && resolve.isSystem((RepoId)id));
+      if (!system) { closed = false; break; }
+      systemPaths.add(entry.getKey());
+    }
+    List<Path> paths = new ArrayList<>(depends.binaryDeps.keySet());
+    SharedLoader shared = closed ? resolve.sharedLoader(paths, systemPaths) : null;
+    if (shared != null) return Collections.singletonList(shared);
+    // otherwise we load our binary depends ourselves, save for any that are covered by existing
+    // shared loaders; those loaders' jars are closed, so they need nothing that we provide
+    return resolve.sharedSubsets(paths);
+  }
+
+  // returns the binary depends of depends which are not loaded by any of the shared loaders
+  private static List<Path> unshared (Depends depends, List<SharedLoader> shared) {
+    List<Path> paths = new ArrayList<>(depends.binaryDeps.keySet());
+    for (SharedLoader loader : shared) paths.removeAll(loader.paths);
+    return paths;
+  }
+
   private static URL[] toURLs (Path classes, Collection<Path> paths) {
     URL[] urls = new URL[1+paths.size()];
     int ii = 0;
@@ -98,4 +377,28 @@ public class ModuleLoader extends URLClassLoader {
     for (Path path : paths) urls[ii++] = toURL(path);
     return urls;
   }
+
+  private final Depends.Resolver _resolve;
+  private final Depends _depends;
+  private final List<SharedLoader> _shared;
+  private final int _sharedCount;
+  private final List<Path> _systemPaths;
+  private final List<Path> _ownPaths;
+  private final AtomicReferenceArray<ClassLoader> _delegates;
+  private final Object _initLock = new Object();
+  private volatile Set<String> _ownPkgs;
+  private volatile MappedJar[] _mapped;
+  private volatile Map<String,int[]> _routes;
+  // the packages we have defined for classes loaded from mapped jars
+  private final Set<String> _mappedPkgs = ConcurrentHashMap.newKeySet();
+
+  // a bounded (LRU) set of class names which we know we cannot load
+  private final Map<String,Boolean> _missing = Collections.synchronizedMap(
+    new LinkedHashMap<String,Boolean>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry (Map.Entry<String,Boolean> eldest) {
+        return size() > MAX_MISSING;
+      }
+    });
+
+  private static final int[] NO_LOADERS = new int[0];
 }
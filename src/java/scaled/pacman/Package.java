@@ -46,6 +46,10 @@ public class Package {
   public final List<String> scopts;
   public final List<Depend> depends;
 
+  /** The JDK with which to build this package's modules (see {@link JDKRegistry#byName}), or null
+    * to build with the running JDK. */
+  public final String jdk;
+
   public final List<String> errors;
 
   /** Returns all modules contained in this package. These are returned topologically sorted, such
@@ -121,6 +125,7 @@ public class Package {
     scopts.addAll(cfg.resolve("scopts", Config.WordsP));
 
     depends = cfg.resolveDepends();
+    jdk = cfg.resolveOptional("jdk");
     List<String> mods = cfg.resolve("module", Config.StringListP);
 
     // we're done with the package config, so accumulate any errors
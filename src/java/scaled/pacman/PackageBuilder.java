@@ -5,6 +5,8 @@
 package scaled.pacman;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -13,8 +15,12 @@ import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -23,6 +29,12 @@ import java.util.Map;
  */
 public class PackageBuilder {
 
+  /** The version of Scala used to compile modules that don't depend on scala-library. */
+  public static final String DEFAULT_SCALA_VERSION = "2.11.7";
+
+  /** The version of Kotlin used to compile modules that don't depend on kotlin-stdlib. */
+  public static final String DEFAULT_KOTLIN_VERSION = "1.0.0-beta-1038";
+
   public PackageBuilder (PackageRepo repo, Package pkg) {
     _repo = repo;
     _pkg = pkg;
@@ -48,10 +60,26 @@ public class PackageBuilder {
     return rebuilt;
   }
 
+  /** Returns the ids of the compilers needed to build {@code mod}, based on the languages of its
+    * sources and the versions of those languages' libraries in its depends. */
+  public List<RepoId> compilerDepends (Module mod) throws IOException {
+    List<RepoId> ids = new ArrayList<>();
+    if (!Files.exists(mod.mainDir())) return ids;
+    Map<String,Path> srcDirs = mod.sourceDirs();
+    Depends deps = mod.depends(_repo.resolver);
+    if (srcDirs.containsKey("scala")) ids.add(scalacId(deps));
+    if (srcDirs.containsKey("kt")) ids.add(kotlincId(deps));
+    return ids;
+  }
+
   protected void build (Module mod) throws IOException {
     String what = mod.pkg.name;
     if (!mod.isDefault()) what += "#" + mod.name;
     Log.log("Building " + what + "...");
+    String commit = sourceCommit();
+    // forget the commit of any previous build, in case this one fails
+    Path commitFile = mod.outputDir().resolve(COMMIT_FILE);
+    Files.deleteIfExists(commitFile);
 
     // clear out and (re)create (if needed), the build output directory
     Filez.deleteAll(mod.classesDir());
@@ -76,31 +104,159 @@ public class PackageBuilder {
     if (javaDir != null) buildJava(mod, javaDir, scalaDir != null);
     // TODO: moar languages!
 
-    // finally jar everything up
+    // finally index our packages (for ModuleLoader) and jar everything up
+    PackageIndex.write(mod.classesDir());
     createJar(mod.classesDir(), mod.moduleJar());
+
+    // note the commit from which we built, so that a later rebuild can tell if anything changed;
+    // the file is stamped with the time the sources were found clean, so that anything modified
+    // during the build is still seen as newer
+    if (commit != null) {
+      Files.write(commitFile, Collections.singletonList(commit), StandardCharsets.UTF_8);
+      Files.setLastModifiedTime(commitFile, FileTime.fromMillis(_commitStamp));
+    }
+
+    // the module (and anything that depends on it) needs new loaders to see the new code
+    _repo.invalidate(mod);
+  }
+
+  /** Recompiles only {@code sources} (Java source files of {@code mod}) into the module's existing
+    * classes, rather than cleaning and rebuilding the whole module. This is only done for modules
+    * built solely from Java, and is only complete if the signatures (see {@link ClassApi}) of the
+    * recompiled classes are unchanged, as the module's other sources, and modules which depend on
+    * it, are not recompiled.
+    * @return true if the module was rebuilt, false if the caller must do a full build. */
+  public boolean buildIncremental (Module mod, Collection<Path> sources) throws IOException {
+    Map<String,Path> srcDirs = mod.sourceDirs();
+    Path javaDir = srcDirs.get("java");
+    if (javaDir == null || srcDirs.size() != (srcDirs.containsKey("resources") ? 2 : 1) ||
+        !Files.isDirectory(mod.classesDir()) || !Files.exists(mod.moduleJar())) return false;
+    List<String> srcs = new ArrayList<>();
+    for (Path source : sources) {
+      if (!source.startsWith(javaDir) || !source.toString().endsWith(".java") ||
+          !Files.isRegularFile(source)) return false;
+      srcs.add(mod.root.relativize(source).toString());
+    }
+
+    String what = mod.pkg.name;
+    if (!mod.isDefault()) what += "#" + mod.name;
+    Log.log("Recompiling " + sources.size() + " source(s) in " + what + "...");
+    Files.deleteIfExists(mod.outputDir().resolve(COMMIT_FILE));
+    // note the signatures of the classes compiled from our sources and remove those classes, so
+    // that removed classes are noticed, then recompile and compare
+    Map<String,String> oldApi = classApis(mod, javaDir, sources, true);
+    try { buildJava(mod, srcs, true); }
+    catch (IOException ioe) { return false; } // let a full build report the errors
+    Map<String,String> newApi = classApis(mod, javaDir, sources, false);
+    if (newApi == null || !newApi.keySet().containsAll(oldApi.keySet())) return false;
+    for (Map.Entry<String,String> entry : oldApi.entrySet()) {
+      if (!entry.getValue().equals(newApi.get(entry.getKey()))) return false;
+    }
+
+    PackageIndex.write(mod.classesDir());
+    createJar(mod.classesDir(), mod.moduleJar());
+    _repo.invalidate(mod);
+    return true;
+  }
+
+  // returns the signatures of the classes in our classes dir compiled from sources (which must be
+  // in javaDir), optionally deleting those classes; the classes are found via their SourceFile
+  // attribute, in the directory that mirrors the source's; when not deleting, this returns null if
+  // a source has no classes there (e.g. because its package does not match its directory)
+  private Map<String,String> classApis (Module mod, Path javaDir, Collection<Path> sources,
+                                        boolean delete) throws IOException {
+    Map<String,String> apis = new HashMap<>();
+    for (Path source : sources) {
+      Path dir = mod.classesDir().resolve(javaDir.relativize(source.getParent()).toString());
+      String file = source.getFileName().toString();
+      boolean found = false;
+      if (Files.isDirectory(dir)) {
+        try (DirectoryStream<Path> classes = Files.newDirectoryStream(dir, "*.class")) {
+          for (Path clazz : classes) {
+            ClassApi api = ClassApi.read(clazz);
+            if (!file.equals(api.sourceFile)) continue;
+            apis.put(api.name, api.signature);
+            if (delete) Files.delete(clazz);
+            found = true;
+          }
+        }
+      }
+      if (!found && !delete) return null;
+    }
+    return apis;
   }
 
   protected boolean rebuild (Module mod) throws IOException {
     Path moduleJar = mod.moduleJar();
     long lastBuild = Files.exists(moduleJar) ? Files.getLastModifiedTime(moduleJar).toMillis() : 0L;
+    // if the module was built from a clean checkout of the current commit, anything modified since
+    // its sources were found clean (including the package and module metadata) needs a rebuild;
+    // this checks only file stamps, so no git process is needed to decide that nothing changed
+    if (lastBuild != 0L && builtFromCommit(mod)) {
+      lastBuild = Files.getLastModifiedTime(mod.outputDir().resolve(COMMIT_FILE)).toMillis();
+      if (isNewer(_pkg.root.resolve(Package.FILE), lastBuild) ||
+          isNewer(mod.root.resolve(Module.FILE), lastBuild)) {
+        build(mod);
+        return true;
+      }
+    }
     if (!Filez.existsNewer(lastBuild, mod.mainDir())) return false;
     build(mod);
     return true;
   }
 
+  /** Returns true if {@code mod} was last built from a clean checkout of the commit which is
+    * presently checked out. This reads the git metadata directly rather than running git. */
+  protected boolean builtFromCommit (Module mod) throws IOException {
+    Path commitFile = mod.outputDir().resolve(COMMIT_FILE);
+    if (!Files.exists(commitFile)) return false;
+    GitMeta meta = GitMeta.read(_pkg.root);
+    String head = (meta == null) ? null : meta.head();
+    List<String> built = Files.readAllLines(commitFile, StandardCharsets.UTF_8);
+    return head != null && !built.isEmpty() && head.equals(built.get(0));
+  }
+
+  /** Returns the commit from which this package's sources were checked out, or null if the
+    * sources have uncommitted modifications, are not in a git repository, or git fails. This is
+    * computed once per builder, and {@link #_commitStamp} notes when. */
+  protected String sourceCommit () throws IOException {
+    if (!_commitRead) {
+      _commitRead = true;
+      _commitStamp = System.currentTimeMillis();
+      GitMeta meta = GitMeta.read(_pkg.root);
+      String head = (meta == null) ? null : meta.head();
+      if (head != null) {
+        // only the sources and package metadata matter (build output and lockfiles do not), and
+        // --branch ensures that a clean tree yields exactly one line of output
+        List<String> cmd = new ArrayList<>();
+        Collections.addAll(cmd, "git", "status", "--porcelain", "--branch", "--", Package.FILE);
+        for (Module mod : _pkg.modules()) {
+          cmd.add(_pkg.root.relativize(mod.mainDir()).toString());
+          cmd.add(_pkg.root.relativize(mod.root.resolve(Module.FILE)).toString());
+        }
+        try {
+          List<String> status = Exec.exec(_pkg.root, cmd).output(0, "git status failed");
+          if (status.size() == 1 && status.get(0).startsWith("##")) _commit = head;
+        } catch (IOException ioe) {
+          // if we can't tell whether the sources are clean, we must assume that they're not
+          Log.log("Unable to check status of " + _pkg.root + ": " + ioe);
+        }
+      }
+    }
+    return _commit;
+  }
+
+  private static boolean isNewer (Path path, long stamp) throws IOException {
+    return Files.exists(path) && Files.getLastModifiedTime(path).toMillis() >= stamp;
+  }
+
   protected void buildScala (Module mod, Path scalaDir, Path javaDir) throws IOException {
     List<String> cmd = new ArrayList<>();
-    cmd.add(findJavaHome().resolve("bin").resolve("java").toString());
+    cmd.add(findJavaHome(mod).resolve("bin").resolve("java").toString());
 
-    // find out what version of scala-library is in our depends
     Depends deps = mod.depends(_repo.resolver);
-    String scalaVers = deps.findVersion("org.scala-lang:scala-library");
-    if (scalaVers == null) scalaVers = "2.11.7";
-
-    // use scala-compiler of the same version
-    String scalacId = "org.scala-lang:scala-compiler:" + scalaVers;
     cmd.add("-cp");
-    cmd.add(classpathToString(_repo.mvn.resolve(RepoId.parse(scalacId)).values()));
+    cmd.add(classpathToString(_repo.mvn.resolve(scalacId(deps)).values()));
     cmd.add("scala.tools.nsc.Main");
 
     cmd.add("-d"); cmd.add(mod.root.relativize(mod.classesDir()).toString());
@@ -114,8 +270,15 @@ public class PackageBuilder {
   }
 
   protected void buildJava (Module mod, Path javaDir, boolean multiLang) throws IOException {
+    List<String> sources = new ArrayList<>();
+    addSources(mod.root, javaDir, ".java", sources);
+    buildJava(mod, sources, multiLang);
+  }
+
+  protected void buildJava (Module mod, List<String> sources, boolean multiLang)
+  throws IOException {
     List<String> cmd = new ArrayList<>();
-    cmd.add(findJavaHome().resolve("bin").resolve("javac").toString());
+    cmd.add(findJavaHome(mod).resolve("bin").resolve("javac").toString());
 
     cmd.addAll(mod.pkg.jcopts);
     Path target = mod.root.relativize(mod.classesDir());
@@ -123,26 +286,21 @@ public class PackageBuilder {
     List<Path> cp = buildClasspath(mod, mod.depends(_repo.resolver));
     // if we're compiling multiple languages, we need to add the target directory to our classpath
     // because we may have Java source files that depend on classes compiled by the other language
+    // (the same goes for an incremental build, where the other classes are from the last build)
     if (multiLang) cp.add(0, target);
     if (!cp.isEmpty()) { cmd.add("-cp"); cmd.add(classpathToString(cp)); }
-    addSources(mod.root, javaDir, ".java", cmd);
+    cmd.addAll(sources);
 
     Exec.exec(mod.root, cmd).expect(0, "Java build failed.");
   }
 
   protected void buildKotlin (Module mod, Path ktDir) throws IOException {
     List<String> cmd = new ArrayList<>();
-    cmd.add(findJavaHome().resolve("bin").resolve("java").toString());
+    cmd.add(findJavaHome(mod).resolve("bin").resolve("java").toString());
 
-    // find out what version of kotlin-library is in our depends
     Depends deps = mod.depends(_repo.resolver);
-    String kotlinVers = deps.findVersion("org.jetbrains.kotlin:kotlin-stdlib");
-    if (kotlinVers == null) kotlinVers = "1.0.0-beta-1038";
-
-    // use kotlin-compiler of the same version
-    String kotlincId = "org.jetbrains.kotlin:kotlin-compiler:" + kotlinVers;
     cmd.add("-cp");
-    cmd.add(classpathToString(_repo.mvn.resolve(RepoId.parse(kotlincId)).values()));
+    cmd.add(classpathToString(_repo.mvn.resolve(kotlincId(deps)).values()));
     cmd.add("org.jetbrains.kotlin.cli.jvm.K2JVMCompiler");
 
     // cmd.addAll(mod.pkg.ktcopts);
@@ -160,6 +318,20 @@ public class PackageBuilder {
     Exec.exec(mod.root, cmd).expect(0, "Kotlin build failed.");
   }
 
+  protected RepoId scalacId (Depends deps) {
+    // use the scala-compiler with the same version as the scala-library in our depends
+    String scalaVers = deps.findVersion("org.scala-lang:scala-library");
+    if (scalaVers == null) scalaVers = DEFAULT_SCALA_VERSION;
+    return RepoId.parse("org.scala-lang:scala-compiler:" + scalaVers);
+  }
+
+  protected RepoId kotlincId (Depends deps) {
+    // use the kotlin-compiler with the same version as the kotlin-stdlib in our depends
+    String kotlinVers = deps.findVersion("org.jetbrains.kotlin:kotlin-stdlib");
+    if (kotlinVers == null) kotlinVers = DEFAULT_KOTLIN_VERSION;
+    return RepoId.parse("org.jetbrains.kotlin:kotlin-compiler:" + kotlinVers);
+  }
+
   protected void createJar (Path sourceDir, Path targetJar) throws IOException {
     // if the old jar file exists, move it out of the way; this reduces the likelihood that we'll
     // cause a JVM to crash by truncating and replacing a jar file out from under it
@@ -169,7 +341,9 @@ public class PackageBuilder {
     }
     List<String> cmd = new ArrayList<>();
     cmd.add("jar");
-    cmd.add("-cf");
+    // store entries uncompressed: module jars are local build products, so size matters little,
+    // and stored classes can be read (or memory mapped) without inflating them
+    cmd.add("-cf0");
     cmd.add(targetJar.toString());
     cmd.add(".");
     Exec.exec(sourceDir, cmd).expect(0, "Jar creation failed.");
@@ -208,6 +382,14 @@ public class PackageBuilder {
     return sb.toString();
   }
 
+  protected Path findJavaHome (Module mod) throws IOException {
+    if (mod.jdk == null) return findJavaHome();
+    JDK jdk = _repo.jdks.byName(mod.jdk);
+    if (jdk == null) throw new IOException(
+      "Unknown JDK '" + mod.jdk + "' for " + mod.source + ". Known JDKs: " + _repo.jdks.jdks());
+    return jdk.home;
+  }
+
   protected Path findJavaHome () throws IOException {
     Path jreHome = Paths.get(Props.javaHome);
     Path javaHome = jreHome.getParent();
@@ -223,4 +405,10 @@ public class PackageBuilder {
 
   protected final PackageRepo _repo;
   protected final Package _pkg;
+  protected boolean _commitRead;
+  protected String _commit;
+  protected long _commitStamp;
+
+  /** The file (in a module's output directory) which records the commit it was built from. */
+  protected static final String COMMIT_FILE = "commit";
 }
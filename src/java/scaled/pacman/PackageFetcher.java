@@ -19,7 +19,7 @@ public class PackageFetcher {
     _repo = repo;
     _source = source;
     _pkgDir = pkgDir;
-    _vcs = VCSDriver.get(source.vcs);
+    _vcs = VCSDriver.get(source.vcs, repo.mirrorDir());
   }
 
   /** Loads and returns the package fetched by this fetcher. This assumes that {@code pkgDir} points
@@ -0,0 +1,137 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Tracks the packages (directories which contain classes or resources) provided by a jar file or
+ * classes directory. {@link PackageBuilder} writes an index into every {@code module.jar} so that
+ * {@link ModuleLoader} can route lookups directly to the loader that can satisfy them. Packages are
+ * represented in resource form: {@code foo/bar} for {@code foo.bar}, and the empty string for the
+ * default package.
+ */
+public class PackageIndex {
+
+  /** The path, in a jar file or classes directory, at which the package index is stored. */
+  public static final String PATH = "META-INF/pacman/packages";
+
+  /** Returns the package which contains the class named {@code className}. */
+  public static String classPackage (String className) {
+    int didx = className.lastIndexOf('.');
+    return (didx == -1) ? "" : className.substring(0, didx).replace('.', '/');
+  }
+
+  /** Returns the package which contains the resource at {@code path}. */
+  public static String resourcePackage (String path) {
+    int sidx = path.lastIndexOf('/');
+    return (sidx == -1) ? "" : path.substring(0, sidx);
+  }
+
+  /** Scans {@code classesDir} and writes its package index into {@link #PATH} therein. */
+  public static void write (Path classesDir) throws IOException {
+    Path index = classesDir.resolve(PATH);
+    Files.createDirectories(index.getParent());
+    Files.write(index, new TreeSet<>(scanDir(classesDir)), StandardCharsets.UTF_8);
+  }
+
+  /** Returns the packages provided by {@code path}, which may be a jar file or a directory. Jar
+    * files use their embedded index if they have one, otherwise their entries are scanned. Jar
+    * indices are cached (and revalidated against the jar's modification time); directories are
+    * always scanned because their contents change during development. */
+  public static Set<String> forPath (Path path) {
+    try {
+      if (Files.isDirectory(path)) return scanDir(path);
+      if (!Files.exists(path)) return Collections.emptySet();
+      long stamp = Files.getLastModifiedTime(path).toMillis();
+      Cached cached = _jars.get(path);
+      if (cached == null || cached.stamp != stamp) {
+        _jars.put(path, cached = new Cached(stamp, readJar(path)));
+      }
+      return cached.pkgs;
+    } catch (IOException e) {
+      Log.log("Unable to index packages", "path", path, e);
+      return Collections.emptySet();
+    }
+  }
+
+  private static Set<String> readJar (Path path) throws IOException {
+    Set<String> pkgs = new HashSet<>();
+    try (JarFile jar = new JarFile(path.toFile())) {
+      JarEntry index = jar.getJarEntry(PATH);
+      if (index != null) {
+        try (BufferedReader in = new BufferedReader(
+          new InputStreamReader(jar.getInputStream(index), StandardCharsets.UTF_8))) {
+          String line;
+          while ((line = in.readLine()) != null) pkgs.add(line);
+        }
+      } else {
+        for (Enumeration<JarEntry> iter = jar.entries(); iter.hasMoreElements(); ) {
+          JarEntry entry = iter.nextElement();
+          if (!entry.isDirectory()) addPackage(pkgs, entry.getName());
+        }
+      }
+    }
+    return pkgs;
+  }
+
+  private static Set<String> scanDir (Path root) throws IOException {
+    Set<String> pkgs = new HashSet<>();
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override public FileVisitResult visitFile (Path file, BasicFileAttributes attrs) {
+        if (!attrs.isDirectory()) addPackage(pkgs, toResourcePath(root.relativize(file)));
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return pkgs;
+  }
+
+  private static void addPackage (Set<String> pkgs, String path) {
+    String pkg = resourcePackage(path);
+    pkgs.add(pkg);
+    // classes in multi-release jars are also visible in their unversioned package
+    if (pkg.startsWith(VERSIONS)) {
+      int sidx = pkg.indexOf('/', VERSIONS.length());
+      pkgs.add(sidx == -1 ? "" : pkg.substring(sidx+1));
+    }
+  }
+
+  private static String toResourcePath (Path path) {
+    List<String> parts = new ArrayList<>();
+    for (Path part : path) parts.add(part.toString());
+    return String.join("/", parts);
+  }
+
+  private static class Cached {
+    public final long stamp;
+    public final Set<String> pkgs;
+    public Cached (long stamp, Set<String> pkgs) {
+      this.stamp = stamp;
+      this.pkgs = pkgs;
+    }
+  }
+
+  private static final String VERSIONS = "META-INF/versions/";
+  private static final Map<Path,Cached> _jars = new ConcurrentHashMap<>();
+}
@@ -7,9 +7,18 @@ package scaled.pacman;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class PackageOp {
 
@@ -26,6 +35,16 @@ public class PackageOp {
       try { Filez.deleteAll(temp); }
       catch (IOException e) { e.printStackTrace(System.err); }
     }});
+
+    // if requested, clone, download and build everything concurrently
+    if (Props.pipelineInstall) {
+      InstallPipeline pipe = new InstallPipeline(_repo, temp);
+      List<Package> rebuilt = pipe.install(source);
+      _upgraded.addAll(pipe.visited());
+      for (Package pkg : rebuilt) upgradeDependents(pkg);
+      return;
+    }
+
     PackageFetcher pf = new PackageFetcher(_repo, source, temp);
     Log.log("Cloning " + source + " into temp dir...");
     pf.checkout();
@@ -63,24 +82,84 @@ public class PackageOp {
       installDepends(npkg);
     }
 
-    // rebuild the package itself
-    if (rebuild(npkg)) {
-      // if we actually rebuilt anything, upgrade any packages that depend on this package
-      Set<Package> updeps = new HashSet<>();
-      for (Package dpkg : _repo.packages()) {
-        if (dpkg.packageDepends().contains(pkg.source)) {
-          // force this package to be rebuild (which may not yet have happened even if the package
-          // is already in _upgraded)
-          _forceBuild.add(dpkg.source);
-          // omit this package from our forced upgrade list if it's already been upgraded
-          if (!_upgraded.contains(dpkg.source)) updeps.add(dpkg);
+    // rebuild the package itself; if we actually rebuilt anything, upgrade any packages that
+    // depend on this package
+    if (rebuild(npkg)) upgradeDependents(npkg);
+  }
+
+  /** Upgrades all installed packages. Every package is fetched and updated concurrently, any newly
+    * needed depends are installed, and then every package that is out of date (or that depends on
+    * a package that was rebuilt) is rebuilt in parallel, each as soon as its depends are done.
+    * Failures do not stop the upgrade of unrelated packages, but are reported at the end. */
+  public void upgradeAll () throws IOException {
+    List<String> failures = new ArrayList<>();
+
+    // update every package's VCS clone, noting those whose commit changed
+    Map<Source,Package> updated = new ConcurrentHashMap<>();
+    Set<Source> changed = ConcurrentHashMap.newKeySet();
+    ExecutorService fetches = Executors.newFixedThreadPool(Props.cloneThreads);
+    Map<Package,CompletableFuture<Void>> updates = new LinkedHashMap<>();
+    for (Package pkg : _repo.packages()) updates.put(pkg, CompletableFuture.runAsync(() -> {
+      try {
+        String before = headCommit(pkg.root);
+        PackageFetcher pf = new PackageFetcher(_repo, pkg.source, pkg.root);
+        Log.log("Updating " + pkg.source + "...");
+        pf.update();
+        String after = headCommit(pkg.root);
+        if (after == null || !after.equals(before)) changed.add(pkg.source);
+        updated.put(pkg.source, pf.readPackage());
+      } catch (IOException e) {
+        throw new CompletionException(e);
+      }
+    }, fetches));
+    try {
+      for (Map.Entry<Package,CompletableFuture<Void>> entry : updates.entrySet()) {
+        try { entry.getValue().join(); }
+        catch (CompletionException e) {
+          failures.add("Failed to update " + entry.getKey().name + ": " + e.getCause());
         }
       }
-      if (!updeps.isEmpty()) {
-        Log.log("Upgrading " + updeps.size() + " pkgs which depend on " + npkg.name + "...");
-        for (Package updep : updeps) upgrade(updep);
+    } finally {
+      fetches.shutdown();
+    }
+    _upgraded.addAll(updated.keySet());
+    Log.log(changed.size() + " of " + updates.size() + " packages changed.");
+
+    // install any depends that the updated packages newly need
+    for (Package pkg : updated.values()) {
+      for (Source source : pkg.packageDepends()) {
+        if (!_repo.packageBySource(source).isPresent()) install(source);
       }
     }
+
+    // rebuild out of date packages and everything that depends on them, in depend order; the
+    // order must come from the updated packages, as their depends may have changed
+    List<Package> pkgs = new ArrayList<>();
+    for (Package pkg : _repo.packages()) pkgs.add(updated.getOrDefault(pkg.source, pkg));
+    ExecutorService builds = Executors.newFixedThreadPool(Props.buildThreads);
+    Map<Source,CompletableFuture<Boolean>> built = new LinkedHashMap<>();
+    for (Package pkg : topoOrder(pkgs)) {
+      List<CompletableFuture<Boolean>> deps = new ArrayList<>();
+      for (Source source : pkg.packageDepends()) {
+        CompletableFuture<Boolean> dep = built.get(source);
+        if (dep != null) deps.add(dep);
+      }
+      CompletableFuture<Void> ready = CompletableFuture.allOf(
+        deps.toArray(new CompletableFuture<?>[0]));
+      built.put(pkg.source, ready.thenApplyAsync(v -> rebuildAfter(pkg, deps), builds));
+    }
+    try {
+      for (Map.Entry<Source,CompletableFuture<Boolean>> entry : built.entrySet()) {
+        try { entry.getValue().join(); }
+        catch (CompletionException e) {
+          failures.add("Failed to rebuild " + entry.getKey() + ": " + e.getCause());
+        }
+      }
+    } finally {
+      builds.shutdown();
+    }
+
+    if (!failures.isEmpty()) throw new IOException(String.join("\n", failures));
   }
 
   /** Ensures that all depends of this package have been installed and upgraded. */
@@ -94,6 +173,67 @@ public class PackageOp {
     }
   }
 
+  /** Upgrades (and forces the rebuild of) any installed packages that depend on {@code pkg}, which
+    * was just rebuilt. */
+  protected void upgradeDependents (Package pkg) throws IOException {
+    Set<Package> updeps = new HashSet<>();
+    for (Package dpkg : _repo.packages()) {
+      if (dpkg.packageDepends().contains(pkg.source)) {
+        // force this package to be rebuild (which may not yet have happened even if the package
+        // is already in _upgraded)
+        _forceBuild.add(dpkg.source);
+        // omit this package from our forced upgrade list if it's already been upgraded
+        if (!_upgraded.contains(dpkg.source)) updeps.add(dpkg);
+      }
+    }
+    if (!updeps.isEmpty()) {
+      Log.log("Upgrading " + updeps.size() + " pkgs which depend on " + pkg.name + "...");
+      for (Package updep : updeps) upgrade(updep);
+    }
+  }
+
+  // rebuilds pkg if any of its (completed) depends were rebuilt, or if it is otherwise out of date
+  // (see PackageBuilder.rebuild); returns true if it was rebuilt
+  private boolean rebuildAfter (Package pkg, List<CompletableFuture<Boolean>> deps) {
+    try {
+      PackageBuilder pb = new PackageBuilder(_repo, pkg);
+      for (CompletableFuture<Boolean> dep : deps) if (dep.join()) {
+        pb.build();
+        return true;
+      }
+      return pb.rebuild();
+    } catch (IOException e) {
+      throw new CompletionException(e);
+    }
+  }
+
+  // orders pkgs such that every package follows the packages (in pkgs) on which it depends
+  private static List<Package> topoOrder (List<Package> pkgs) {
+    Map<Source,Package> bySource = new LinkedHashMap<>();
+    for (Package pkg : pkgs) bySource.put(pkg.source, pkg);
+    Map<Source,Package> ordered = new LinkedHashMap<>();
+    Set<Source> visiting = new HashSet<>();
+    for (Package pkg : pkgs) addInOrder(pkg, bySource, visiting, ordered);
+    return new ArrayList<>(ordered.values());
+  }
+
+  private static void addInOrder (Package pkg, Map<Source,Package> bySource, Set<Source> visiting,
+                                  Map<Source,Package> ordered) {
+    // a package already in progress is part of a cycle, which we leave to the build to report
+    if (ordered.containsKey(pkg.source) || !visiting.add(pkg.source)) return;
+    for (Source source : pkg.packageDepends()) {
+      Package dpkg = bySource.get(source);
+      if (dpkg != null) addInOrder(dpkg, bySource, visiting, ordered);
+    }
+    ordered.put(pkg.source, pkg);
+  }
+
+  // returns the commit checked out in root, or null if that cannot be determined
+  protected static String headCommit (Path root) throws IOException {
+    GitMeta meta = GitMeta.read(root);
+    return (meta == null) ? null : meta.head();
+  }
+
   protected boolean rebuild (Package pkg) throws IOException {
     PackageBuilder pb = new PackageBuilder(_repo, pkg);
     if (!_forceBuild.contains(pkg.source)) return pb.rebuild();
@@ -14,10 +14,12 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -27,6 +29,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class PackageRepo {
 
@@ -34,6 +41,8 @@ public class PackageRepo {
   public static interface Observer {
     void packageAdded (Package pkg);
     void packageRemoved (Package pkg);
+    /** Called when modules are invalidated. Any loaders obtained for them are now stale. */
+    default void modulesInvalidated (Set<Module> mods) {}
   }
 
   /** A hook for Scaled to observe package goings on. */
@@ -43,10 +52,14 @@ public class PackageRepo {
   public final Path metaDir = locateMetaDir();
 
   /** Used to resolve Maven artifacts. */
-  public final MavenResolver mvn = new MavenResolver();
+  public final MavenResolver mvn = new MavenResolver(
+    metaDir.resolve("Maven").resolve("repo-health.txt"));
+
+  /** The JDKs installed on this machine. */
+  public final JDKRegistry jdks = new JDKRegistry(metaDir.resolve("jdks.txt"));
 
   /** Used to resolve System artifacts. */
-  public final SystemResolver sys = new SystemResolver();
+  public final SystemResolver sys = new SystemResolver(jdks);
 
   /** Used to resolve dependencies. */
   public final Depends.Resolver resolver = new Depends.Resolver() {
@@ -68,13 +81,36 @@ public class PackageRepo {
       return (arts != null) && arts.contains(id.artifactId);
     }
     public ClassLoader systemLoader (Path path) {
-      ClassLoader cl = _systemLoaders.get(path);
-      if (cl == null) _systemLoaders.put(
-        path, cl = new URLClassLoader(new URL[] { ModuleLoader.toURL(path) }));
-      return cl;
+      return _systemLoaders.computeIfAbsent(path, SystemLoader::new);
+    }
+    public SharedLoader sharedLoader (List<Path> paths, List<Path> systemPaths) {
+      if (!Props.shareBinaryDeps) return null;
+      return _sharedLoaders.computeIfAbsent(Arrays.asList(paths, systemPaths), key -> {
+        List<ClassLoader> sysLoaders = new ArrayList<>();
+        for (Path path : systemPaths) sysLoaders.add(systemLoader(path));
+        return new SharedLoader(paths, sysLoaders);
+      });
+    }
+    public List<SharedLoader> sharedSubsets (List<Path> paths) {
+      if (!Props.shareBinaryDeps) return Collections.emptyList();
+      List<SharedLoader> subsets = new ArrayList<>();
+      for (SharedLoader loader : _sharedLoaders.values()) {
+        if (paths.containsAll(loader.paths)) subsets.add(loader);
+      }
+      // take the largest subsets first, skipping any which overlap those already taken
+      subsets.sort((a, b) -> Integer.compare(b.paths.size(), a.paths.size()));
+      Set<Path> covered = new HashSet<>();
+      for (Iterator<SharedLoader> iter = subsets.iterator(); iter.hasNext(); ) {
+        List<Path> lpaths = iter.next().paths;
+        if (Collections.disjoint(covered, lpaths)) covered.addAll(lpaths);
+        else iter.remove();
+      }
+      return subsets;
     }
 
-    private Map<Path,ClassLoader> _systemLoaders = new HashMap<>();
+    // these may be accessed by multiple threads resolving modules in parallel
+    private Map<Path,ClassLoader> _systemLoaders = new ConcurrentHashMap<>();
+    private Map<List<List<Path>>,SharedLoader> _sharedLoaders = new ConcurrentHashMap<>();
   };
 
   /** Creates (if necessary) and returns a directory in the top-level Scaled metadata directory. */
@@ -89,6 +125,11 @@ public class PackageRepo {
     return metaDir("Packages");
   }
 
+  /** Returns the directory in which VCS mirrors are kept, or null if mirroring is disabled. */
+  public Path mirrorDir () {
+    return Props.gitMirror ? metaDir.resolve("Mirrors") : null;
+  }
+
   /** Returns the directory in which a package named {@code name} should be installed. */
   public Path packageDir (String name) throws IOException {
     return packagesDir().resolve(name);
@@ -118,6 +159,84 @@ public class PackageRepo {
     return new ArrayList<>(pkgs.values());
   }
 
+  /** Resolves the depends of every installed module in one batch. Modules are resolved in depend
+    * order, each via its lockfile if that is current, or via {@link MavenResolver#resolve}, which
+    * resolves each distinct list of Maven depends only once. Each module still filters its Maven
+    * depends against those inherited from its module depends, as usual. If {@link
+    * Props#parallelResolve} is set, independent modules are resolved in parallel. */
+  public void resolveAll () {
+    List<Module> mods = new ArrayList<>();
+    for (Package pkg : topoPackages()) for (Module mod : pkg.modules()) mods.add(mod);
+    if (Props.parallelResolve) resolveParallel(mods);
+    else for (Module mod : mods) mod.depends(resolver);
+  }
+
+  /** Downloads everything needed to build the modules of {@code pkgs}: their Maven depends, and
+    * the compilers that will be used to build them, and resolves their depends. Downloads are done
+    * in parallel. Nothing is built. */
+  public void prefetch (List<Package> pkgs) throws IOException {
+    List<Module> mods = new ArrayList<>();
+    Set<List<RepoId>> sets = new LinkedHashSet<>();
+    for (Package pkg : pkgs) for (Module mod : pkg.modules()) {
+      List<RepoId> ids = mod.mavenDepends();
+      if (!ids.isEmpty()) sets.add(ids);
+      mods.add(mod);
+    }
+    mvn.prefetch(sets);
+    mvn.resolveAll(sets);
+    for (Module mod : mods) mod.depends(resolver);
+
+    // now that we know which versions of the languages they use, fetch their compilers
+    Set<List<RepoId>> compilers = new LinkedHashSet<>();
+    for (Module mod : mods) {
+      for (RepoId id : new PackageBuilder(this, mod.pkg).compilerDepends(mod)) {
+        compilers.add(Collections.singletonList(id));
+      }
+    }
+    mvn.prefetch(compilers);
+    mvn.resolveAll(compilers);
+  }
+
+  // resolves the depends of mods in parallel: each module is resolved once all of its module
+  // depends have been, so independent parts of the module graph are resolved concurrently
+  private void resolveParallel (List<Module> mods) {
+    int threads = Runtime.getRuntime().availableProcessors();
+    ExecutorService exec = Executors.newFixedThreadPool(threads, task -> {
+      Thread thread = new Thread(task, "pacman-resolver");
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      Map<Module,CompletableFuture<Void>> resolved = new HashMap<>();
+      for (Module mod : mods) resolveAfterDepends(mod, resolved, exec);
+      CompletableFuture.allOf(resolved.values().toArray(new CompletableFuture<?>[0])).join();
+    } catch (CompletionException e) {
+      Log.log("Parallel resolution failed", e.getCause());
+    } finally {
+      exec.shutdown();
+    }
+  }
+
+  private CompletableFuture<Void> resolveAfterDepends (
+    Module mod, Map<Module,CompletableFuture<Void>> resolved, ExecutorService exec) {
+    // a module that maps to null is in progress, which means we have a cycle; we leave Depends to
+    // report that in its own way
+    if (resolved.containsKey(mod)) return resolved.get(mod);
+    resolved.put(mod, null);
+    List<CompletableFuture<Void>> deps = new ArrayList<>();
+    for (Depend dep : mod.depends) {
+      if (!dep.isSource() || dep.scope == Depend.Scope.EXEC) continue;
+      Optional<Module> dmod = Depends.moduleDepend(mod, (Source)dep.id, resolver);
+      if (!dmod.isPresent()) continue;
+      CompletableFuture<Void> dres = resolveAfterDepends(dmod.get(), resolved, exec);
+      if (dres != null) deps.add(dres);
+    }
+    CompletableFuture<Void> result = CompletableFuture.allOf(
+      deps.toArray(new CompletableFuture<?>[0])).thenRunAsync(() -> mod.depends(resolver), exec);
+    resolved.put(mod, result);
+    return result;
+  }
+
   /** Returns the package named {@code name}, if any. */
   public Optional<Package> packageByName (String name) {
     // TODO: map packages by name?
@@ -139,6 +258,32 @@ public class PackageRepo {
     return new ArrayList<>(pkgs.values());
   }
 
+  /** Invalidates the cached loader of {@code mod} and of all modules which depend on it (directly
+    * or transitively). Their loaders will be recreated on next use, which allows a rebuilt module's
+    * new classes to be loaded without restarting the JVM. A rebuild does not change the depends of
+    * an installed module, so their resolved depends are kept. If {@code mod} is not the installed
+    * instance of its module (e.g. its package file was reread during an upgrade), its depends may
+    * have changed, so the depends of every invalidated module are discarded as well.
+    * @return the modules that were invalidated. */
+  public Set<Module> invalidate (Module mod) {
+    // walk the dependents index breadth first from mod
+    Set<Module> mods = new LinkedHashSet<>();
+    Deque<Module> queue = new ArrayDeque<>();
+    mods.add(mod);
+    queue.add(mod);
+    while (!queue.isEmpty()) {
+      Set<Module> dmods = _dependents.get(queue.poll().source);
+      if (dmods != null) for (Module dmod : dmods) if (mods.add(dmod)) queue.add(dmod);
+    }
+    boolean installed = resolver.moduleBySource(mod.source).orElse(null) == mod;
+    for (Module imod : mods) {
+      if (installed) imod.invalidateLoader();
+      else imod.invalidate();
+    }
+    if (observer != null) observer.modulesInvalidated(mods);
+    return mods;
+  }
+
   public void init () throws IOException {
     // resolve all packages in our packages directory (TODO: use cache if this is too slow)
     Files.walkFileTree(packagesDir(), FOLLOW_LINKS, MAX_PKG_DEPTH, new SimpleFileVisitor<Path>() {
@@ -159,7 +304,9 @@ public class PackageRepo {
         Log.log("ERRORS in " + pkg.root + "/package.scaled:");
         for (String error : pkg.errors) Log.log("- " + error);
       }
-      _pkgs.put(pkg.source, pkg);
+      Package opkg = _pkgs.put(pkg.source, pkg);
+      if (opkg != null) indexDependents(opkg, false);
+      indexDependents(pkg, true);
       if (observer != null) observer.packageAdded(pkg);
       return true;
     } catch (Exception e) {
@@ -168,6 +315,19 @@ public class PackageRepo {
     }
   }
 
+  // adds (or removes) the modules of pkg to (or from) the dependents index
+  private void indexDependents (Package pkg, boolean add) {
+    for (Module mod : pkg.modules()) for (Depend dep : mod.depends) {
+      if (!dep.isSource()) continue;
+      Source source = (Source)dep.id;
+      if (add) _dependents.computeIfAbsent(source, s -> ConcurrentHashMap.newKeySet()).add(mod);
+      else {
+        Set<Module> dmods = _dependents.get(source);
+        if (dmods != null) dmods.remove(mod);
+      }
+    }
+  }
+
   private void addPackageDepends (LinkedHashMap<Source,Package> pkgs, Package pkg) {
     // stop if we've already added this package's depends
     if (pkgs.containsKey(pkg.source)) return;
@@ -199,7 +359,30 @@ public class PackageRepo {
     else return homeDir.resolve(".scaled");
   }
 
-  private final Map<Source,Package> _pkgs = new HashMap<>();
+  private final Map<Source,Package> _pkgs = new ConcurrentHashMap<>();
+  // maps the source of each module to the installed modules that depend on it
+  private final Map<Source,Set<Module>> _dependents = new ConcurrentHashMap<>();
+
+  // loads a system depend; classes loaded by code in system depends (which never passes through a
+  // module loader) are noted here, so that they show up in class load profiles
+  private static class SystemLoader extends URLClassLoader {
+    static { registerAsParallelCapable(); }
+
+    public SystemLoader (Path path) {
+      super(new URL[] { ModuleLoader.toURL(path) });
+    }
+
+    @Override protected Class<?> loadClass (String name, boolean resolve)
+    throws ClassNotFoundException {
+      Class<?> clazz = super.loadClass(name, resolve);
+      LoadProfile.noteLoaded(name);
+      return clazz;
+    }
+
+    @Override public String toString () {
+      return "SystemLoader(" + Arrays.asList(getURLs()) + ")";
+    }
+  }
 
   private static final Set<FileVisitOption> FOLLOW_LINKS = Collections.singleton(
     FileVisitOption.FOLLOW_LINKS);
@@ -0,0 +1,176 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the source directories of a set of packages and incrementally rebuilds the modules whose
+ * sources change (and any watched modules which depend on them). The watcher runs until the JVM is
+ * terminated, which keeps the JVM (and our resolved depends) warm between rebuilds.
+ *
+ * <p>When only existing Java sources change, just those sources are recompiled (see {@link
+ * PackageBuilder#buildIncremental}), and if the signatures of their classes are unchanged,
+ * dependent modules are not rebuilt. Any other change results in a full (clean) build of the
+ * module and of every watched module which depends on it.</p>
+ */
+public class PackageWatcher {
+
+  /** The number of milliseconds of quiet we wait for after a change before rebuilding. This
+    * coalesces the burst of events generated by an editor save or a VCS update. */
+  public static final long DEBOUNCE_MILLIS = 150;
+
+  /** Creates a watcher for all modules in {@code pkgs}, which must be topologically sorted (as
+    * returned by {@link PackageRepo#packageDepends}). */
+  public PackageWatcher (PackageRepo repo, List<Package> pkgs) {
+    _repo = repo;
+    for (Package pkg : pkgs) for (Module mod : pkg.modules()) _mods.add(mod);
+  }
+
+  /** Registers our watchers and then processes change events forever (or until interrupted). */
+  public void watch () throws IOException {
+    try (WatchService service = FileSystems.getDefault().newWatchService()) {
+      for (Module mod : _mods) register(service, mod, mod.mainDir());
+      Log.log("Watching " + _mods.size() + " modules for changes...");
+
+      while (true) {
+        // maps each dirty module to its changed files, or null if it needs a full build
+        Map<Module,Set<Path>> dirty = new HashMap<>();
+        for (Module mod : _failed) dirty.put(mod, null);
+        // block until something changes, then keep draining events until things go quiet
+        WatchKey key = service.take();
+        while (key != null) {
+          process(service, key, dirty);
+          key = service.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        if (!dirty.isEmpty()) rebuild(dirty);
+      }
+
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      Log.log("Watch terminated.");
+    }
+  }
+
+  protected void process (WatchService service, WatchKey key, Map<Module,Set<Path>> dirty) {
+    Module mod = _keys.get(key);
+    Path dir = (Path)key.watchable();
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (mod == null) continue;
+      boolean full = true;
+      // if we overflowed, we may have missed the creation of a directory; rescan the module
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) register(service, mod, mod.mainDir());
+      else {
+        Path path = dir.resolve((Path)event.context());
+        // ignore changes to files which the build does not read (e.g. editor backups)
+        if (!isBuildInput(mod, path)) continue;
+        // if a new directory was created, start watching it (and anything already created in it)
+        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+          register(service, mod, path);
+        }
+        // a modified or created file can be recompiled on its own, anything else cannot
+        else if (event.kind() != StandardWatchEventKinds.ENTRY_DELETE) {
+          Set<Path> changed = dirty.containsKey(mod) ? dirty.get(mod) : new HashSet<>();
+          if (changed != null) {
+            changed.add(path);
+            dirty.put(mod, changed);
+          }
+          full = false;
+        }
+      }
+      if (full) dirty.put(mod, null);
+    }
+    // if the directory is gone, the key will be invalid and we stop tracking it
+    if (!key.reset()) _keys.remove(key);
+  }
+
+  protected void rebuild (Map<Module,Set<Path>> dirty) {
+    // rebuild the dirty modules, and all watched modules that depend on a module whose signatures
+    // may have changed (i.e. one which had a full build); because _mods is topologically sorted,
+    // a single pass suffices
+    Set<Source> changed = new HashSet<>();
+    int built = 0;
+    long start = System.currentTimeMillis();
+    for (Module mod : _mods) {
+      boolean depChanged = dependsOn(mod, changed);
+      if (!depChanged && !dirty.containsKey(mod)) continue;
+      try {
+        PackageBuilder builder = new PackageBuilder(_repo, mod.pkg);
+        Set<Path> sources = dirty.get(mod);
+        if (depChanged || sources == null || !builder.buildIncremental(mod, sources)) {
+          builder.build(mod);
+          changed.add(mod.source);
+        }
+        _failed.remove(mod);
+        built++;
+      } catch (Exception e) {
+        // report the failure and stop this round; the failed module gets a full build next round
+        Log.log("Failure building " + mod + ": " + e.getMessage());
+        _failed.add(mod);
+        return;
+      }
+    }
+    Log.log("Rebuilt " + built + " modules in " + (System.currentTimeMillis() - start) + "ms.");
+  }
+
+  // returns true if path (which may have been deleted) is a source file or resource of mod, or may
+  // be a directory containing such files
+  private boolean isBuildInput (Module mod, Path path) {
+    String name = path.getFileName().toString();
+    if (name.startsWith(".")) return false;
+    if (path.startsWith(mod.resourcesDir()) || Files.isDirectory(path)) return true;
+    for (String suff : SOURCE_SUFFS) if (name.endsWith(suff)) return true;
+    // we cannot tell whether a deleted path was a directory, so assume that it was if its name
+    // has no suffix
+    return !Files.exists(path) && name.indexOf('.') < 0;
+  }
+
+  private boolean dependsOn (Module mod, Set<Source> sources) {
+    for (Depend dep : mod.depends) if (dep.isSource() && sources.contains(dep.id)) return true;
+    return false;
+  }
+
+  private void register (WatchService service, Module mod, Path root) {
+    if (!Files.isDirectory(root)) return;
+    try {
+      Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+        @Override public FileVisitResult preVisitDirectory (Path dir, BasicFileAttributes attrs)
+        throws IOException {
+          _keys.put(dir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                                 StandardWatchEventKinds.ENTRY_DELETE,
+                                 StandardWatchEventKinds.ENTRY_MODIFY), mod);
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } catch (IOException e) {
+      Log.log("Unable to watch " + root, e);
+    }
+  }
+
+  private final PackageRepo _repo;
+  private final List<Module> _mods = new ArrayList<>();
+  private final Map<WatchKey,Module> _keys = new HashMap<>();
+  private final Set<Module> _failed = new LinkedHashSet<>();
+
+  private static final String[] SOURCE_SUFFS = { ".java", ".scala", ".kt" };
+}
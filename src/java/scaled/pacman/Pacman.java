@@ -7,8 +7,11 @@ package scaled.pacman;
 import java.io.File;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
 import java.util.function.Consumer;
@@ -17,23 +20,35 @@ import java.util.function.Consumer;
 public class Pacman {
 
   public static String[] USAGE = {
-    "Usage: spam <command>",
+    "Usage: spam [--offline] <command>",
+    "",
+    "--offline resolves Maven depends from ~/.m2 only, without contacting remote repositories.",
     "",
     "where <command> is one of:",
     "",
     "  build pkg-name [--deps]              cleans and builds pkg-name (and depends if --deps)",
     "  clean pkg-name [--deps]              cleans pkg-name (and its depends if --deps)",
-    "  depends pkg-name#module              prints flattened depend list pkg-name#module",
+    "  depends pkg-name#module [group:artifact]",
+    "                                       prints flattened depend list pkg-name#module",
+    "                                       or the version of group:artifact that it uses",
     "  deptree pkg-name                     prints depend tree for (all modules in) pkg-name",
     "  info [pkg-name | --all]              prints detailed info on pkg-name (or all packages)",
     "  install [pkg-name | pkg-url]         installs package (by name or url) and its depends",
+    "                                       (with -Dpacman.parallel_fetch, downloads in parallel)",
     "  list [--all]                         lists installed (or all) packages",
     "  rebuild [from-pkg-name]              cleans and rebuilds all installed packages",
     "                                       continues rebuild at from-pkg-name if supplied",
+    "  prefetch [pkg-name | --all]          downloads everything needed to build pkg-name",
+    "                                       (and its depends) or all packages, in parallel",
     "  refresh                              updates the package directory index",
-    "  run pkg-name#module class [arg ...]  runs class from pkg-name#module with args",
+    "  run [--flat] pkg-name#module class [arg ...]",
+    "                                       runs class from pkg-name#module with args",
+    "                                       --flat runs from a cached, merged jar if possible",
+    "                                       (with -Dpacman.cds, uses a CDS archive if possible)",
+    "                                       (with -Dpacman.load_profile, preloads classes)",
     "  search text                          lists all packages in directory which match text",
-    "  upgrade [pkg-name]                   upgrades package and its depends"
+    "  upgrade [pkg-name | --all]           upgrades package and its depends, or all packages",
+    "  watch pkg-name [--deps]              rebuilds pkg-name (and depends if --deps) on change"
   };
 
   public static final Printer out = new Printer(System.out);
@@ -41,30 +56,42 @@ public class Pacman {
   public static final PackageDirectory index = new PackageDirectory();
 
   public static void main (String[] args) {
+    // strip global flags
+    while (args.length > 0 && args[0].startsWith("--")) {
+      if (args[0].equals("--offline")) repo.mvn.setOffline(true);
+      else fail(USAGE);
+      args = tail(args, 1);
+    }
     if (args.length == 0) fail(USAGE);
 
     // create our package repository and grind our packages
     try { repo.init(); }
     catch (Exception e) { fail("Failed to create package repository: " + e.getMessage()); }
 
+    // if requested, resolve all of our modules' depends up front, in parallel, for the commands
+    // that use them
+    if (Props.parallelResolve && RESOLVE_CMDS.contains(args[0])) repo.resolveAll();
+
     // read our index (downloading the initial package if necessary)
     initIndex();
 
     // we'll introduce proper arg parsing later; for now KISS
     try {
       switch (args[0]) {
-        case     "run": run(arg(args, 1), arg(args, 2), tail(args, 3)); break;
+        case     "run": run(args); break;
         case    "info": info(arg(args, 1)); break;
         case    "list": list(optarg(args, 1, "").equals("--all")); break;
         case   "build": build(arg(args, 1), optarg(args, 2, "").equals("--deps")); break;
         case   "clean": clean(arg(args, 1), optarg(args, 2, "").equals("--deps")); break;
         case  "search": search(optarg(args, 1, "")); break;
-        case "depends": depends(arg(args, 1)); break;
+        case "depends": depends(arg(args, 1), optarg(args, 2, "")); break;
         case "deptree": deptree(arg(args, 1)); break;
         case "install": install(tail(args, 1)); break;
+        case "prefetch": prefetch(arg(args, 1)); break;
         case "rebuild": buildAll(optarg(args, 1, "")); break;
         case "refresh": refresh(); break;
         case "upgrade": upgrade(arg(args, 1)); break;
+        case   "watch": watch(arg(args, 1), optarg(args, 2, "").equals("--deps")); break;
         default: fail(USAGE); break;
       }
     } catch (MissingArgException mae) {
@@ -72,6 +99,9 @@ public class Pacman {
     }
   }
 
+  private static final List<String> RESOLVE_CMDS = Arrays.asList(
+    "run", "build", "rebuild", "depends", "deptree", "watch");
+
   private static String usageFor (String cmd) {
     String prefix = "  " + cmd;
     for (String usage : USAGE) {
@@ -87,7 +117,7 @@ public class Pacman {
       Path idir = repo.packageDir(IDX_PKG_NAME);
       if (!Files.exists(idir)) {
         System.out.println("* Fetching Scaled package directory...");
-        VCSDriver.get(Source.VCS.GIT).checkout(new URI(IDX_GIT_URL), idir);
+        VCSDriver.get(Source.VCS.GIT, repo.mirrorDir()).checkout(new URI(IDX_GIT_URL), idir);
       }
       index.init(idir);
     } catch (Exception e) {
@@ -156,7 +186,13 @@ public class Pacman {
   }
 
   private static void upgrade (String pkgName) {
-    onPackage(pkgName, pkg -> {
+    if (pkgName.equals("--all")) {
+      try {
+        new PackageOp(repo).upgradeAll();
+        out.println("Upgrade complete!");
+      } catch (Exception e) { fail("Upgrade failed", e); }
+    }
+    else onPackage(pkgName, pkg -> {
       try {
         new PackageOp(repo).upgrade(pkg);
         out.println("Upgrade complete!");
@@ -191,14 +227,31 @@ public class Pacman {
     });
   }
 
-  private static void depends (String pkgMod) {
+  private static void depends (String pkgMod, String stableId) {
     onModule(pkgMod, mod -> {
-      for (Depend.Id id : mod.depends(repo.resolver).flatten()) {
-        out.println(id);
+      Depends deps = mod.depends(repo.resolver);
+      if (stableId.equals("")) {
+        for (Depend.Id id : deps.flatten()) out.println(id);
+      } else {
+        String version = deps.findVersion(stableId);
+        if (version != null) out.println(stableId + ":" + version);
+        else fail(mod + " does not depend on " + stableId);
       }
     });
   }
 
+  private static void prefetch (String pkgName) {
+    List<Package> pkgs;
+    if (pkgName.equals("--all")) pkgs = repo.topoPackages();
+    else {
+      Optional<Package> pkg = repo.packageByName(pkgName);
+      if (!pkg.isPresent()) { fail("Unknown package: " + pkgName); return; }
+      pkgs = repo.packageDepends(pkg.get());
+    }
+    try { repo.prefetch(pkgs); }
+    catch (Exception e) { fail("Prefetch failed", e); }
+  }
+
   private static void buildAll (String pkgName) {
     List<Package> toBuild = repo.topoPackages();
     int[] procsToThreads = { 1, 1, 1, 2, 2, 3, 4, 5, 6 };
@@ -316,17 +369,59 @@ public class Pacman {
     });
   }
 
+  private static void watch (String pkgName, boolean deps) {
+    onPackage(pkgName, pkg -> {
+      try { new PackageWatcher(repo, packageOrDeps(pkg, deps)).watch(); }
+      catch (Exception e) { fail("Failure watching: " + pkg.root, e); }
+    });
+  }
+
   private static List<Package> packageOrDeps (Package pkg, boolean deps) {
     return deps ? repo.packageDepends(pkg) : Collections.singletonList(pkg);
   }
 
-  private static void run (String pkgMod, String classname, String[] args) {
+  private static void run (String[] args) {
+    boolean flat = arg(args, 1).equals("--flat");
+    int aa = flat ? 2 : 1;
+    run(arg(args, aa), arg(args, aa+1), tail(args, aa+2), flat);
+  }
+
+  private static void run (String pkgMod, String classname, String[] args, boolean flat) {
     onModule(pkgMod, mod -> {
       try {
-        ModuleLoader loader = mod.loader(repo.resolver);
-        if (Props.debug) {
-          debug("Running " + pkgMod + " " + classname + " " + Arrays.asList(args));
-          loader.dump("  ");
+        // if we're running flat or with CDS, and the module's classloader graph can be flattened
+        // into a single classpath, do so
+        List<Path> cp = null;
+        Depends deps = mod.depends(repo.resolver);
+        if (flat || Props.cds) {
+          if (deps.isFlattenable()) cp = deps.classpath();
+          else debug("Not flattening, " + mod + " has conflicting depends.");
+        }
+        // merge the flat classpath into a single jar, if it can be merged; otherwise we run from
+        // the flat classpath as is
+        if (flat && cp != null) {
+          Path jar = FlatJar.get(repo.metaDir("Launch"), cp);
+          if (jar != null) cp = Collections.singletonList(jar);
+          else debug("Not merging, " + mod + " has multi-release or Class-Path jars.");
+        }
+        // if CDS is enabled, try to run in a forked JVM which uses a shared archive
+        if (Props.cds && cp != null && CDS.isSupported()) runCDS(cp, classname, args);
+
+        ClassLoader loader;
+        if (flat && cp != null) {
+          URL[] urls = new URL[cp.size()];
+          for (int ii = 0; ii < urls.length; ii++) urls[ii] = ModuleLoader.toURL(cp.get(ii));
+          loader = new URLClassLoader(urls, ModuleLoader.class.getClassLoader());
+          debug("Running " + pkgMod + " " + classname + " from " + cp);
+        } else {
+          ModuleLoader mloader = mod.loader(repo.resolver);
+          if (Props.debug) {
+            debug("Running " + pkgMod + " " + classname + " " + Arrays.asList(args));
+            mloader.dump("  ");
+          }
+          loader = mloader;
+          // record a class load profile for this run, or preload using an existing profile
+          if (Props.loadProfile) LoadProfile.start(repo, mod, classname, mloader);
         }
         Thread.currentThread().setContextClassLoader(loader);
         Class<?> clazz = loader.loadClass(classname);
@@ -337,6 +432,36 @@ public class Pacman {
     });
   }
 
+  private static void runCDS (List<Path> modcp, String classname, String[] args) throws Exception {
+    // pacman and mfetcher are in every module loader's parent chain, so they go first
+    List<Path> cp = new ArrayList<>();
+    cp.add(codeSource(Pacman.class));
+    cp.add(codeSource(repo.mvn.depmgr.getClass().getSuperclass()));
+    cp.addAll(modcp);
+    if (!CDS.canArchive(cp)) {
+      debug("Not using CDS, classpath contains non-jar entries: " + cp);
+      return;
+    }
+
+    List<String> cmd = new ArrayList<>();
+    cmd.add(JDK.thisJDK.binJava().toString());
+    cmd.addAll(CDS.jvmArgs(repo.metaDir("CDS"), "run", cp));
+    cmd.add("-classpath");
+    StringBuilder sb = new StringBuilder();
+    for (Path path : cp) {
+      if (sb.length() > 0) sb.append(Props.pathSep);
+      sb.append(path);
+    }
+    cmd.add(sb.toString());
+    cmd.add(classname);
+    cmd.addAll(Arrays.asList(args));
+    System.exit(Exec.exec(Paths.get(Props.cwd()), cmd).waitFor());
+  }
+
+  private static Path codeSource (Class<?> clazz) throws URISyntaxException {
+    return Paths.get(clazz.getProtectionDomain().getCodeSource().getLocation().toURI());
+  }
+
   private static void onPackage (String name, Consumer<Package> fn) {
     Optional<Package> po = repo.packageByName(name);
     if (po.isPresent()) fn.accept(po.get());
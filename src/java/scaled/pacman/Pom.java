@@ -0,0 +1,338 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * A minimal model of a Maven POM: just enough to compute the depends of an artifact, which we use
+ * to walk dependency graphs without going through Aether. Parent inheritance, properties,
+ * dependency management and imported BOMs are supported. Anything we can't model faithfully
+ * (version ranges, relocations, profile depends, unresolvable versions) is reported via {@link
+ * IOException} so that callers can fall back to Aether.
+ */
+public class Pom {
+
+  /** Loads POMs on behalf of {@link #resolveDepends}. */
+  public interface Loader {
+    /** Returns the POM for {@code id} (whose kind is {@code pom}), or throws if it is not
+      * available. */
+    Pom load (RepoId id) throws IOException;
+  }
+
+  /** A dependency (or managed dependency) declared in a POM. */
+  public static class Dep {
+    public final String groupId, artifactId, version, type, classifier, scope;
+    public final boolean optional;
+    /** The {@code groupId:artifactId} of excluded depends; either may be {@code *}. */
+    public final Set<String> exclusions;
+
+    public Dep (String groupId, String artifactId, String version, String type,
+                String classifier, String scope, boolean optional, Set<String> exclusions) {
+      this.groupId = groupId;
+      this.artifactId = artifactId;
+      this.version = version;
+      this.type = type == null ? "jar" : type;
+      this.classifier = classifier;
+      this.scope = scope;
+      this.optional = optional;
+      this.exclusions = exclusions;
+    }
+
+    /** Returns the key used to match this depend against managed depends. */
+    public String key () {
+      return groupId + ":" + artifactId + ":" + type + (classifier == null ? "" : ":" + classifier);
+    }
+
+    /** Returns the scope of this depend, defaulting to {@code compile}. */
+    public String scope () {
+      return scope == null ? "compile" : scope;
+    }
+
+    public RepoId toRepoId () {
+      return new RepoId(groupId, artifactId, version, type, classifier);
+    }
+
+    @Override public String toString () {
+      return key() + ":" + version + " (" + scope() + (optional ? ", optional" : "") + ")";
+    }
+  }
+
+  /** Returns true if {@code exclusions} excludes {@code groupId:artifactId}. */
+  public static boolean isExcluded (Set<String> exclusions, String groupId, String artifactId) {
+    if (exclusions.isEmpty()) return false;
+    return (exclusions.contains(groupId + ":" + artifactId) ||
+            exclusions.contains(groupId + ":*") || exclusions.contains("*:" + artifactId) ||
+            exclusions.contains("*:*"));
+  }
+
+  /** Returns the id of the POM for the artifact {@code id}. */
+  public static RepoId pomId (RepoId id) {
+    return new RepoId(id.groupId, id.artifactId, id.version, "pom");
+  }
+
+  /** Parses the POM in {@code file}. */
+  public static Pom parse (Path file) throws IOException {
+    try (InputStream in = Files.newInputStream(file)) {
+      return parse(in, file.toString());
+    }
+  }
+
+  /** Parses a POM from {@code in}. {@code source} is used in error messages. */
+  public static Pom parse (InputStream in, String source) throws IOException {
+    try {
+      DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+      dbf.setExpandEntityReferences(false);
+      try {
+        dbf.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+      } catch (Exception e) {} // not supported by this parser, oh well
+      DocumentBuilder db = dbf.newDocumentBuilder();
+      return new Pom(db.parse(in, source).getDocumentElement(), source);
+    } catch (IOException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException("Failed to parse POM: " + source, e);
+    }
+  }
+
+  /** The raw (uninterpolated, uninherited) values from the POM. */
+  public final String groupId, artifactId, version, packaging;
+
+  /** The id of this POM's parent, or null. */
+  public final RepoId parent;
+
+  /** The properties declared in this POM. */
+  public final Map<String,String> properties;
+
+  /** The depends and managed depends declared in this POM. */
+  public final List<Dep> depends, managed;
+
+  /** Whether this POM declares a relocation. */
+  public final boolean relocated;
+
+  /** Whether this POM declares profiles which (when active) add depends or managed depends. */
+  public final boolean profileDepends;
+
+  /** Returns this POM's effective group id (which may be inherited from its parent). */
+  public String groupId () {
+    return groupId != null ? groupId : (parent == null ? null : parent.groupId);
+  }
+
+  /** Returns this POM's effective version (which may be inherited from its parent). */
+  public String version () {
+    return version != null ? version : (parent == null ? null : parent.version);
+  }
+
+  /** Computes the effective depends of this POM: inherited from its parents, with properties
+    * interpolated and versions and scopes filled in from dependency management.
+    * @throws IOException if a parent or imported POM cannot be loaded, or if a depend's version
+    * cannot be determined or is a range. */
+  public List<Dep> resolveDepends (Loader loader) throws IOException {
+    List<Pom> chain = chain(loader);
+    Map<String,String> props = props(chain);
+    Map<String,Dep> managed = managed(chain, props, loader);
+
+    Map<String,Dep> deps = new LinkedHashMap<>();
+    // a POM's own depends come before (and override) those inherited from its parents
+    for (Pom pom : chain) for (Dep raw : pom.depends) {
+      Dep dep = interpolate(raw, props);
+      deps.putIfAbsent(dep.key(), dep);
+    }
+
+    List<Dep> resolved = new ArrayList<>();
+    for (Dep dep : deps.values()) {
+      Dep mdep = managed.get(dep.key());
+      String version = dep.version, scope = dep.scope;
+      Set<String> exclusions = dep.exclusions;
+      if (mdep != null) {
+        if (version == null) version = mdep.version;
+        if (scope == null) scope = mdep.scope;
+        if (exclusions.isEmpty()) exclusions = mdep.exclusions;
+      }
+      if (version == null) throw new IOException(
+        "Unable to determine version of " + dep.key() + " in " + this);
+      if (isRange(version)) throw new IOException(
+        "Version ranges not supported: " + dep.key() + ":" + version + " in " + this);
+      resolved.add(new Dep(dep.groupId, dep.artifactId, version, dep.type, dep.classifier,
+                           scope, dep.optional, exclusions));
+    }
+    return resolved;
+  }
+
+  @Override public String toString () {
+    return groupId() + ":" + artifactId + ":" + version() + " (" + _source + ")";
+  }
+
+  protected Pom (Element root, String source) throws IOException {
+    _source = source;
+    Element pel = child(root, "parent");
+    parent = (pel == null) ? null : new RepoId(
+      text(pel, "groupId"), text(pel, "artifactId"), text(pel, "version"), "pom");
+    groupId = text(root, "groupId");
+    artifactId = text(root, "artifactId");
+    version = text(root, "version");
+    packaging = text(root, "packaging");
+
+    Map<String,String> props = new HashMap<>();
+    Element propsEl = child(root, "properties");
+    if (propsEl != null) for (Element prop : children(propsEl, null)) {
+      props.put(prop.getTagName(), prop.getTextContent().trim());
+    }
+    properties = props;
+
+    depends = parseDeps(child(root, "dependencies"));
+    Element dm = child(root, "dependencyManagement");
+    managed = parseDeps(dm == null ? null : child(dm, "dependencies"));
+
+    Element dist = child(root, "distributionManagement");
+    relocated = (dist != null && child(dist, "relocation") != null);
+
+    boolean pdeps = false;
+    Element profiles = child(root, "profiles");
+    if (profiles != null) for (Element profile : children(profiles, "profile")) {
+      pdeps |= (child(profile, "dependencies") != null ||
+                child(profile, "dependencyManagement") != null);
+    }
+    profileDepends = pdeps;
+  }
+
+  private List<Pom> chain (Loader loader) throws IOException {
+    List<Pom> chain = new ArrayList<>();
+    Set<RepoId> seen = new HashSet<>();
+    for (Pom pom = this; pom != null; ) {
+      if (pom.relocated) throw new IOException("Relocations not supported: " + pom);
+      if (pom.profileDepends) throw new IOException("Profile depends not supported: " + pom);
+      chain.add(pom);
+      if (pom.parent == null) break;
+      if (!seen.add(pom.parent)) throw new IOException("Cyclic parents: " + this);
+      pom = loader.load(pom.parent);
+    }
+    return chain;
+  }
+
+  private Map<String,String> props (List<Pom> chain) {
+    Map<String,String> props = new HashMap<>();
+    // a POM's properties override those of its parents
+    for (int ii = chain.size()-1; ii >= 0; ii--) props.putAll(chain.get(ii).properties);
+    String groupId = groupId(), version = version();
+    for (String prefix : new String[] { "project.", "pom.", "" }) {
+      if (groupId != null) props.put(prefix + "groupId", groupId);
+      if (artifactId != null) props.put(prefix + "artifactId", artifactId);
+      if (version != null) props.put(prefix + "version", version);
+    }
+    if (parent != null) {
+      props.put("project.parent.groupId", parent.groupId);
+      props.put("project.parent.artifactId", parent.artifactId);
+      props.put("project.parent.version", parent.version);
+    }
+    return props;
+  }
+
+  private Map<String,Dep> managed (List<Pom> chain, Map<String,String> props, Loader loader)
+    throws IOException {
+    Map<String,Dep> managed = new HashMap<>();
+    List<Dep> imports = new ArrayList<>();
+    for (Pom pom : chain) for (Dep raw : pom.managed) {
+      Dep dep = interpolate(raw, props);
+      if ("import".equals(dep.scope) && "pom".equals(dep.type)) imports.add(dep);
+      else managed.putIfAbsent(dep.key(), dep);
+    }
+    // explicitly managed depends take precedence over those from imported BOMs
+    for (Dep imp : imports) {
+      if (imp.version == null) throw new IOException("Unable to determine version of " + imp);
+      Pom bom = loader.load(new RepoId(imp.groupId, imp.artifactId, imp.version, "pom"));
+      List<Pom> bchain = bom.chain(loader);
+      Map<String,Dep> bmanaged = bom.managed(bchain, bom.props(bchain), loader);
+      for (Map.Entry<String,Dep> entry : bmanaged.entrySet()) {
+        managed.putIfAbsent(entry.getKey(), entry.getValue());
+      }
+    }
+    return managed;
+  }
+
+  private static Dep interpolate (Dep dep, Map<String,String> props) {
+    return new Dep(interpolate(dep.groupId, props), interpolate(dep.artifactId, props),
+                   interpolate(dep.version, props), interpolate(dep.type, props),
+                   interpolate(dep.classifier, props), interpolate(dep.scope, props),
+                   dep.optional, dep.exclusions);
+  }
+
+  private static String interpolate (String text, Map<String,String> props) {
+    // properties may refer to other properties, but we don't chase them forever
+    for (int depth = 0; text != null && depth < 8; depth++) {
+      int start = text.indexOf("${");
+      if (start < 0) break;
+      int end = text.indexOf('}', start);
+      if (end < 0) break;
+      String value = props.get(text.substring(start+2, end));
+      if (value == null) break;
+      text = text.substring(0, start) + value + text.substring(end+1);
+    }
+    return text;
+  }
+
+  private static boolean isRange (String version) {
+    return version.startsWith("[") || version.startsWith("(");
+  }
+
+  private static List<Dep> parseDeps (Element deps) {
+    if (deps == null) return Collections.emptyList();
+    List<Dep> list = new ArrayList<>();
+    for (Element dep : children(deps, "dependency")) {
+      Set<String> excls = new HashSet<>();
+      Element exclsEl = child(dep, "exclusions");
+      if (exclsEl != null) for (Element excl : children(exclsEl, "exclusion")) {
+        excls.add(text(excl, "groupId") + ":" + text(excl, "artifactId"));
+      }
+      list.add(new Dep(text(dep, "groupId"), text(dep, "artifactId"), text(dep, "version"),
+                       text(dep, "type"), text(dep, "classifier"), text(dep, "scope"),
+                       "true".equals(text(dep, "optional")), excls));
+    }
+    return list;
+  }
+
+  private static Element child (Element parent, String name) {
+    for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+      if (node instanceof Element && ((Element)node).getTagName().equals(name)) {
+        return (Element)node;
+      }
+    }
+    return null;
+  }
+
+  private static List<Element> children (Element parent, String name) {
+    List<Element> elems = new ArrayList<>();
+    for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+      if (node instanceof Element && (name == null || ((Element)node).getTagName().equals(name))) {
+        elems.add((Element)node);
+      }
+    }
+    return elems;
+  }
+
+  private static String text (Element parent, String name) {
+    Element elem = child(parent, name);
+    if (elem == null) return null;
+    String text = elem.getTextContent().trim();
+    return text.isEmpty() ? null : text;
+  }
+
+  private final String _source;
+}
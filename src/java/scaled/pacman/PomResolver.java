@@ -0,0 +1,156 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves the transitive depends of a set of Maven artifacts by walking their POMs, using
+ * Maven's rules: the graph is walked breadth first, the nearest version of an artifact wins (with
+ * ties going to the first declared), test, provided and system scoped depends and optional depends
+ * are not transitive, and exclusions apply to the entire subtree below the depend that declares
+ * them. The POMs at each depth are requested all at once, so a source which downloads POMs can do
+ * so in parallel.
+ */
+public class PomResolver {
+
+  /** Supplies POM files to the resolver. */
+  public interface Source {
+    /** Returns the POM file for {@code id} (whose kind is {@code pom}). The future should
+      * complete with null (or fail) if the POM is not available. */
+    CompletableFuture<Path> pom (RepoId id);
+  }
+
+  /**
+   * @param strict if true, a missing or unusable POM anywhere in the graph causes resolution to
+   * fail; otherwise that artifact's depends are just omitted.
+   */
+  public PomResolver (Source source, boolean strict) {
+    _source = source;
+    _strict = strict;
+  }
+
+  /** Resolves {@code roots} and their transitive depends. The results are returned in the order
+    * that Aether would list them: a preorder traversal of the resolved dependency tree.
+    * @throws IOException if resolution fails (only in strict mode). */
+  public List<RepoId> resolve (List<RepoId> roots) throws IOException {
+    Map<String,Node> selected = new LinkedHashMap<>();
+    List<Node> rootNodes = new ArrayList<>();
+    List<Node> level = new ArrayList<>();
+    for (RepoId id : roots) level.add(new Node(id, Collections.emptySet()));
+
+    while (!level.isEmpty()) {
+      // select the nodes at this depth that aren't overridden by a nearer (or earlier) node
+      List<Node> winners = new ArrayList<>();
+      for (Node node : level) {
+        if (selected.putIfAbsent(conflictKey(node.id), node) != null) continue;
+        winners.add(node);
+        if (node.parent == null) rootNodes.add(node);
+        else node.parent.children.add(node);
+      }
+      // request all of their POMs at once, then expand them in order
+      for (Node node : winners) pomFile(Pom.pomId(node.id));
+      List<Node> next = new ArrayList<>();
+      for (Node node : winners) {
+        List<Pom.Dep> deps;
+        try {
+          deps = load(Pom.pomId(node.id)).resolveDepends(this::load);
+        } catch (IOException e) {
+          if (_strict) throw e;
+          Log.log("Unable to resolve depends", "id", node.id, "error", e.getMessage());
+          continue;
+        }
+        for (Pom.Dep dep : deps) {
+          if (dep.optional || !isTransitive(dep.scope())) continue;
+          if (Pom.isExcluded(node.exclusions, dep.groupId, dep.artifactId)) continue;
+          if (_strict) checkModeled(dep.toRepoId());
+          Set<String> excls = node.exclusions;
+          if (!dep.exclusions.isEmpty()) {
+            excls = new HashSet<>(excls);
+            excls.addAll(dep.exclusions);
+          }
+          Node child = new Node(dep.toRepoId(), excls);
+          child.parent = node;
+          next.add(child);
+        }
+      }
+      level = next;
+    }
+
+    List<RepoId> ids = new ArrayList<>();
+    for (Node node : rootNodes) node.preorder(ids);
+    return ids;
+  }
+
+  /** Throws an exception if {@code id} is something whose resolution we do not model exactly as
+    * Aether does: anything other than a plain jar (classified artifacts, test jars, POM depends,
+    * bundles and other packaging kinds), or ids containing properties we could not interpolate. */
+  public static void checkModeled (RepoId id) throws IOException {
+    if (!id.kind.equals("jar")) throw new IOException("Unsupported depend type: " + id);
+    if (id.classifier != null) throw new IOException("Unsupported classified depend: " + id);
+    if ((id.groupId + id.artifactId + id.version).contains("${")) throw new IOException(
+      "Uninterpolated property in depend: " + id);
+  }
+
+  private static class Node {
+    public final RepoId id;
+    public final Set<String> exclusions;
+    public Node parent;
+    public final List<Node> children = new ArrayList<>();
+
+    public Node (RepoId id, Set<String> exclusions) {
+      this.id = id;
+      this.exclusions = exclusions;
+    }
+
+    public void preorder (List<RepoId> into) {
+      into.add(id);
+      for (Node child : children) child.preorder(into);
+    }
+  }
+
+  private Pom load (RepoId pomId) throws IOException {
+    Pom pom = _poms.get(pomId);
+    if (pom == null) {
+      Path file;
+      try {
+        file = pomFile(pomId).join();
+      } catch (RuntimeException e) {
+        throw new IOException("Failed to obtain POM: " + pomId, e);
+      }
+      if (file == null) throw new IOException("Missing POM: " + pomId);
+      _poms.put(pomId, pom = Pom.parse(file));
+    }
+    return pom;
+  }
+
+  private CompletableFuture<Path> pomFile (RepoId pomId) {
+    return _files.computeIfAbsent(pomId, _source::pom);
+  }
+
+  private static String conflictKey (RepoId id) {
+    return id.groupId + ":" + id.artifactId + ":" + id.kind +
+      (id.classifier == null ? "" : ":" + id.classifier);
+  }
+
+  private static boolean isTransitive (String scope) {
+    return scope.equals("compile") || scope.equals("runtime");
+  }
+
+  private final Source _source;
+  private final boolean _strict;
+  private final Map<RepoId,CompletableFuture<Path>> _files = new ConcurrentHashMap<>();
+  private final Map<RepoId,Pom> _poms = new ConcurrentHashMap<>();
+}
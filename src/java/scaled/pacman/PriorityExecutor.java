@@ -0,0 +1,58 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed size pool of daemon threads which runs queued tasks in priority order (highest first),
+ * and tasks of equal priority in the order in which they were submitted.
+ */
+public class PriorityExecutor extends ThreadPoolExecutor {
+
+  public PriorityExecutor (int threads, String name) {
+    super(threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), task -> {
+      Thread thread = new Thread(task, name);
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /** Queues {@code task} to be run with {@code priority}. */
+  public void execute (int priority, Runnable task) {
+    super.execute(new Task(priority, _seq.getAndIncrement(), task));
+  }
+
+  /** Queues {@code task} to be run with the default priority (zero). */
+  @Override public void execute (Runnable task) {
+    execute(0, task);
+  }
+
+  private static class Task implements Runnable, Comparable<Task> {
+    public final int priority;
+    public final long seq;
+    public final Runnable task;
+
+    public Task (int priority, long seq, Runnable task) {
+      this.priority = priority;
+      this.seq = seq;
+      this.task = task;
+    }
+
+    @Override public void run () {
+      task.run();
+    }
+
+    @Override public int compareTo (Task other) {
+      if (priority != other.priority) return Integer.compare(other.priority, priority);
+      return Long.compare(seq, other.seq);
+    }
+  }
+
+  private final AtomicLong _seq = new AtomicLong();
+}
@@ -21,6 +21,60 @@ public class Props {
 
   public static final boolean debug = Boolean.getBoolean("debug");
 
+  public static final boolean cds = Boolean.getBoolean("pacman.cds");
+
+  public static final boolean mappedJars = Boolean.getBoolean("pacman.mapped_jars");
+
+  public static final boolean loadProfile = Boolean.getBoolean("pacman.load_profile");
+
+  /** Whether modules with identical or overlapping binary depends share loaders for them (see
+    * {@link SharedLoader} for the limits of this). */
+  public static final boolean shareBinaryDeps = Boolean.getBoolean("pacman.share_binary_deps");
+
+  public static final boolean parallelResolve = Boolean.getBoolean("pacman.parallel_resolve");
+
+  public static final boolean parallelFetch = Boolean.getBoolean("pacman.parallel_fetch");
+
+  public static final int fetchThreads = Integer.getInteger("pacman.fetch_threads", 8);
+
+  /** Whether to install packages via {@link InstallPipeline}, and the number of threads used by its
+    * clone and build stages. Its download stage uses {@link #fetchThreads}. */
+  public static final boolean pipelineInstall = Boolean.getBoolean("pacman.pipeline_install");
+  public static final int cloneThreads = Integer.getInteger("pacman.clone_threads", 4);
+  public static final int buildThreads = Integer.getInteger(
+    "pacman.build_threads", Math.max(1, Runtime.getRuntime().availableProcessors()/2));
+
+  /** Whether to keep bare mirrors of cloned git repositories in the metadata directory, for use as
+    * references by later clones. Enabled unless {@code -Dpacman.git_mirror=false}. */
+  public static final boolean gitMirror = !"false".equals(System.getProperty("pacman.git_mirror"));
+
+  /** If non-zero, git clones are shallow, with this depth. */
+  public static final int gitDepth = Integer.getInteger("pacman.git_depth", 0);
+
+  /** If set, git clones are partial, using this filter (e.g. {@code blob:none}). */
+  public static final String gitFilter = System.getProperty("pacman.git_filter");
+
+  /** Connect and read timeouts (in seconds) for Maven repository downloads. These are set on each
+    * {@link ArtifactFetcher} connection, and in the config of {@link MavenResolver}'s Aether
+    * session. */
+  public static final int connectTimeout = Integer.getInteger("pacman.connect_timeout", 10);
+  public static final int readTimeout = Integer.getInteger("pacman.read_timeout", 30);
+
+  /** How long (in minutes) to remember that a repository lacks an artifact. */
+  public static final int missTTL = Integer.getInteger("pacman.miss_ttl", 24*60);
+
+  /** How long (in minutes) to skip a repository that keeps failing. */
+  public static final int repoCooldown = Integer.getInteger("pacman.repo_cooldown", 30);
+
+  /** Whether to resolve Maven depends solely from the local repository by default. The
+    * {@code --offline} command line flag also enables this (via {@link
+    * MavenResolver#setOffline}). */
+  public static final boolean offline = Boolean.getBoolean("pacman.offline");
+
+  /** Whether to resolve Maven depends by reading POMs from the local repository (falling back to
+    * Aether if anything is missing or not modeled), rather than always using Aether. */
+  public static final boolean localResolve = Boolean.getBoolean("pacman.local_resolve");
+
   public static final String osName = System.getProperty("os.name").toLowerCase();
   public static final boolean isWindows = osName.contains("windows");
 
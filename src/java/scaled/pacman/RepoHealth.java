@@ -0,0 +1,153 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks the health of remote Maven repositories across invocations. Records which artifacts a
+ * repository is known not to have (a negative cache, whose entries expire after a TTL), and counts
+ * consecutive failures to reach each repository. A repository that fails repeatedly is skipped
+ * until a cooldown period has elapsed since its last failure.
+ */
+public class RepoHealth {
+
+  /** The number of consecutive failures after which a repository is put into cooldown. */
+  public static final int MAX_FAILURES = 3;
+
+  /** Returns the key used to identify {@code repo} (a URL, or {@code central}). The scheme and
+    * trailing slash are omitted so that the same repository is identified consistently whether
+    * it was accessed via HTTP or HTTPS. */
+  public static String key (String repo) {
+    String url = repo.equals("central") ? ArtifactFetcher.CENTRAL : repo;
+    int sep = url.indexOf("://");
+    if (sep >= 0) url = url.substring(sep+3);
+    return url.endsWith("/") ? url.substring(0, url.length()-1) : url;
+  }
+
+  /**
+   * @param file the file in which health is persisted, or null to not persist it.
+   * @param missTTL the number of millis for which a miss is remembered.
+   * @param cooldown the number of millis for which a failing repository is skipped.
+   */
+  public RepoHealth (Path file, long missTTL, long cooldown) {
+    _file = file;
+    _missTTL = missTTL;
+    _cooldown = cooldown;
+    if (file != null && Files.exists(file)) read(file);
+  }
+
+  /** Returns true if {@code repo} is not currently in cooldown. */
+  public synchronized boolean isAvailable (String repo) {
+    Failures fails = _failures.get(key(repo));
+    return (fails == null || fails.count < MAX_FAILURES ||
+            System.currentTimeMillis() - fails.last > _cooldown);
+  }
+
+  /** Returns those of {@code repos} which are not currently in cooldown. If all of them are in
+    * cooldown, returns them all, as something is better than nothing. */
+  public synchronized List<String> available (List<String> repos) {
+    List<String> avail = new ArrayList<>();
+    for (String repo : repos) if (isAvailable(repo)) avail.add(repo);
+    return avail.isEmpty() ? repos : avail;
+  }
+
+  /** Returns true if {@code repo} was recently found not to contain {@code path}. */
+  public synchronized boolean isKnownMissing (String repo, String path) {
+    Long when = _misses.get(key(repo) + " " + path);
+    return when != null && System.currentTimeMillis() - when < _missTTL;
+  }
+
+  /** Notes that {@code repo} does not contain {@code path}. This also means that {@code repo} is
+    * reachable. */
+  public synchronized void noteMissing (String repo, String path) {
+    _misses.put(key(repo) + " " + path, System.currentTimeMillis());
+    _dirty = true;
+    noteSuccess(repo);
+  }
+
+  /** Notes that {@code repo} could not be reached (or failed mid-transfer). */
+  public synchronized void noteFailure (String repo) {
+    String key = key(repo);
+    Failures fails = _failures.get(key);
+    if (fails == null) _failures.put(key, fails = new Failures());
+    fails.count++;
+    fails.last = System.currentTimeMillis();
+    if (fails.count == MAX_FAILURES) Log.log(
+      "Repository failing, skipping it for " + (_cooldown/60000) + " minutes", "repo", repo);
+    _dirty = true;
+  }
+
+  /** Notes that {@code repo} was successfully accessed. */
+  public synchronized void noteSuccess (String repo) {
+    if (_failures.remove(key(repo)) != null) _dirty = true;
+  }
+
+  /** Writes our state to our file, if we have one and our state has changed. */
+  public synchronized void save () {
+    if (_file == null || !_dirty) return;
+    long now = System.currentTimeMillis();
+    List<String> lines = new ArrayList<>();
+    for (Map.Entry<String,Failures> entry : _failures.entrySet()) {
+      Failures fails = entry.getValue();
+      if (now - fails.last > _cooldown) continue; // expired
+      lines.add("fail " + fails.count + " " + fails.last + " " + entry.getKey());
+    }
+    for (Map.Entry<String,Long> entry : _misses.entrySet()) {
+      if (now - entry.getValue() >= _missTTL) continue; // expired
+      lines.add("miss " + entry.getValue() + " " + entry.getKey());
+    }
+    try {
+      Files.createDirectories(_file.getParent());
+      Path temp = Files.createTempFile(_file.getParent(), "health", ".tmp");
+      Files.write(temp, lines, StandardCharsets.UTF_8);
+      Files.move(temp, _file, StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+      _dirty = false;
+    } catch (IOException e) {
+      Log.log("Failed to save repository health", "file", _file, e);
+    }
+  }
+
+  private void read (Path file) {
+    try {
+      for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+        String[] bits = line.split(" ", 4);
+        if (bits[0].equals("fail") && bits.length == 4) {
+          Failures fails = new Failures();
+          fails.count = Integer.parseInt(bits[1]);
+          fails.last = Long.parseLong(bits[2]);
+          _failures.put(bits[3], fails);
+        } else if (bits[0].equals("miss") && bits.length >= 3) {
+          _misses.put(line.substring(bits[0].length() + bits[1].length() + 2),
+                      Long.parseLong(bits[1]));
+        }
+      }
+    } catch (IOException | NumberFormatException e) {
+      Log.log("Ignoring invalid repository health", "file", file, "error", e);
+      _failures.clear();
+      _misses.clear();
+    }
+  }
+
+  private static class Failures {
+    public int count;
+    public long last;
+  }
+
+  private final Path _file;
+  private final long _missTTL, _cooldown;
+  private final Map<String,Failures> _failures = new HashMap<>();
+  private final Map<String,Long> _misses = new HashMap<>();
+  private boolean _dirty;
+}
@@ -0,0 +1,78 @@
+//
+// Pacman - the Scaled package manager
+// https://github.com/scaled/pacman/blob/master/LICENSE
+
+package scaled.pacman;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Loads a set of binary depends on behalf of every module whose (private) binary depends are
+ * exactly that set, or include it. A shared loader is only created for a set of binary depends that
+ * is closed under its own dependencies, save for system depends, which are shared by everyone
+ * anyway. Because such a set needs nothing else, a module whose binary depends include it (but
+ * which cannot share its whole set) delegates to the shared loader for those depends and loads
+ * the rest itself. See {@link ModuleLoader}.
+ *
+ * <p>This is only used with {@code -Dpacman.share_binary_deps}, because it changes what classes
+ * can see: classes in the shared jars cannot see classes in the module or its source depends (so
+ * packages split between a jar and module code break, as do jars that look up module classes by
+ * name), and static state in the jars is shared by every module that uses the loader. Which
+ * subsets a module shares depends on the shared loaders that exist when its loader is created, and
+ * individual jars are only shared as part of such a set.</p>
+ */
+public class SharedLoader extends URLClassLoader {
+
+  static { registerAsParallelCapable(); }
+
+  /** The binary depends loaded by this loader. */
+  public final List<Path> paths;
+
+  public SharedLoader (List<Path> paths, List<ClassLoader> systemLoaders) {
+    super(toURLs(paths), ModuleLoader.class.getClassLoader());
+    this.paths = paths;
+    _systemLoaders = systemLoaders;
+  }
+
+  @Override public URL getResource (String path) {
+    URL rsrc = super.getResource(path);
+    if (rsrc != null) return rsrc;
+    for (ClassLoader loader : _systemLoaders) {
+      URL srsrc = loader.getResource(path);
+      if (srsrc != null) return srsrc;
+    }
+    return null;
+  }
+
+  @Override protected Class<?> loadClass (String name, boolean resolve)
+  throws ClassNotFoundException {
+    Class<?> clazz = super.loadClass(name, resolve);
+    LoadProfile.noteLoaded(name);
+    return clazz;
+  }
+
+  @Override protected Class<?> findClass (String name) throws ClassNotFoundException {
+    try { return super.findClass(name); }
+    catch (ClassNotFoundException cnfe) {} // check our system depends
+    for (ClassLoader loader : _systemLoaders) {
+      try { return loader.loadClass(name); }
+      catch (ClassNotFoundException cnfe) {} // keep going
+    }
+    throw new ClassNotFoundException(name);
+  }
+
+  @Override public String toString () {
+    return "SharedLoader(" + paths + ")";
+  }
+
+  private static URL[] toURLs (List<Path> paths) {
+    URL[] urls = new URL[paths.size()];
+    for (int ii = 0; ii < urls.length; ii++) urls[ii] = ModuleLoader.toURL(paths.get(ii));
+    return urls;
+  }
+
+  private final List<ClassLoader> _systemLoaders;
+}
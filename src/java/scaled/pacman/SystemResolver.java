@@ -11,6 +11,10 @@ import java.util.List;
 
 public class SystemResolver {
 
+  public SystemResolver (JDKRegistry jdks) {
+    _jdks = jdks;
+  }
+
   public Path resolve (SystemId id) {
     if (!id.platform.equals("jdk")) {
       throw new IllegalArgumentException("Unknown platform " + id);
@@ -18,12 +22,11 @@ public class SystemResolver {
     if (!id.artifact.equals("tools")) {
       throw new IllegalArgumentException("Unknown JDK artifact " + id);
     }
-    for (JDK jdk : JDK.jdks()) {
-      if (jdk.version().startsWith(id.version)) {
-        return jdk.home.resolve("lib").resolve("tools.jar");
-      }
-    }
+    JDK jdk = _jdks.byVersion(id.version);
     // fall back to using the running JDK (if it is a JDK) and hope for the best
-    return JDK.thisJDK.home.resolve("lib").resolve("tools.jar");
+    if (jdk == null) jdk = JDK.thisJDK;
+    return jdk.home.resolve("lib").resolve("tools.jar");
   }
+
+  private final JDKRegistry _jdks;
 }
@@ -8,6 +8,10 @@ import java.io.IOException;
 import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Wraps our supported DVCSes in a Java API. Warning: ultra primitive!
@@ -27,22 +31,59 @@ public abstract class VCSDriver {
   public abstract void update (Path path) throws IOException;
 
   public static VCSDriver get (Source.VCS vcs) {
+    return get(vcs, null);
+  }
+
+  /** Returns a driver for {@code vcs} which keeps mirrors of the repositories it checks out in
+    * {@code mirrorDir} (if the VCS supports it, and {@code mirrorDir} is not null). */
+  public static VCSDriver get (Source.VCS vcs, Path mirrorDir) {
     switch (vcs) {
-      case GIT: return new GitDriver();
+      case GIT: return new GitDriver(mirrorDir, Props.gitDepth, Props.gitFilter);
       case HG:  return new HgDriver();
       case SVN: return new SubversionDriver();
       default: throw new IllegalArgumentException("Unknown VCS " + vcs);
     }
   }
 
+  /**
+   * Checks out git repositories. If a mirror directory is supplied, a bare mirror of each cloned
+   * repository is kept there, and later clones of the same repository use it as a reference, so
+   * that only objects added since the mirror was last updated are downloaded. The clone is then
+   * dissociated from the mirror (its objects are copied), so that the mirror can be deleted
+   * without harm. Clones may also be shallow ({@code depth > 0}) or partial ({@code filter}).
+   */
   protected static class GitDriver extends VCSDriver {
+    public GitDriver (Path mirrorDir, int depth, String filter) {
+      _mirrorDir = mirrorDir;
+      _depth = depth;
+      _filter = filter;
+    }
+
     public boolean exists (URI url, Path dir) throws IOException {
       return url.toString().equals(readOrigin(dir));
     }
 
     public void checkout (URI url, Path into) throws IOException {
-      Exec.exec(into.getParent(), "git", "clone", "-q", url.toString(),
-                into.getFileName().toString()).expect(0, "git clone failed");
+      List<String> cmd = new ArrayList<>(Arrays.asList("git", "clone", "-q"));
+      if (_mirrorDir != null) {
+        Path mirror = updateMirror(url);
+        if (mirror != null) {
+          cmd.add("--reference-if-able");
+          cmd.add(mirror.toAbsolutePath().toString());
+          cmd.add("--dissociate");
+        }
+      }
+      if (_depth > 0) cmd.add("--depth=" + _depth);
+      if (_filter != null) cmd.add("--filter=" + _filter);
+      cmd.add(url.toString());
+      cmd.add(into.getFileName().toString());
+      Exec.exec(into.getParent(), cmd).expect(0, "git clone failed");
+    }
+
+    /** Returns the directory in which the mirror of {@code url} is kept. */
+    public Path mirror (URI url) {
+      String name = (url.getHost() == null ? "" : url.getHost()) + url.getPath();
+      return _mirrorDir.resolve(name.replaceAll("[^A-Za-z0-9.-]+", "_").replaceAll("^_|_$", ""));
     }
 
     public void fetch (Path path) throws IOException {
@@ -50,21 +91,62 @@ public abstract class VCSDriver {
     }
 
     public void update (Path path) throws IOException {
+      // if the fetch brought nothing new, there's nothing to pull
+      GitMeta meta = GitMeta.read(path);
+      String head = (meta == null) ? null : meta.head();
+      if (head != null && head.equals(meta.upstream())) return;
       // TODO: we probably want some fancy args here, like -ff or something
       Exec.exec(path, "git", "pull").expect(0, "git pull failed");
     }
 
+    // creates or updates the mirror for url; returns null if that failed, in which case we clone
+    // without it
+    private Path updateMirror (URI url) {
+      Path mirror = mirror(url);
+      try {
+        if (Files.exists(mirror)) {
+          Exec.exec(mirror, "git", "fetch", "-q", "--prune").expect(0, "git fetch failed");
+        } else {
+          Files.createDirectories(_mirrorDir);
+          // clone into a temp directory and move it into place, so that an interrupted clone does
+          // not leave a broken mirror behind
+          Path temp = Files.createTempDirectory(_mirrorDir, "clone");
+          try {
+            Exec.exec(_mirrorDir, "git", "clone", "-q", "--mirror", url.toString(),
+                      temp.getFileName().toString()).expect(0, "git clone failed");
+            Files.move(temp, mirror, StandardCopyOption.ATOMIC_MOVE);
+          } finally {
+            if (Files.exists(temp)) Filez.deleteAll(temp);
+          }
+        }
+        return mirror;
+      } catch (IOException e) {
+        Log.log("Unable to update mirror", "url", url, "mirror", mirror, "error", e);
+        return Files.exists(mirror) ? mirror : null;
+      }
+    }
+
     private String readOrigin (Path root) throws IOException {
       // if there's no .git directory here, don't run git because it will search up the directory
       // heirarchy for a .git dir which is not what we want
       if (!Files.exists(root.resolve(".git"))) return "";
-      // if there is a .git directory, then we can run 'git remote -v' to see what we have
+      // read the origin straight out of the config if we can
+      GitMeta meta = GitMeta.read(root);
+      if (meta != null) {
+        String origin = meta.origin();
+        return (origin == null) ? "" : origin;
+      }
+      // otherwise we can run 'git remote -v' to see what we have
       for (String line : Exec.exec(root, "git", "remote", "-v").output()) {
         String[] bits = line.split("\\s");
         if (bits[0].equals("origin")) return bits[1];
       }
       return "";
     }
+
+    private final Path _mirrorDir;
+    private final int _depth;
+    private final String _filter;
   }
 
   protected static class HgDriver extends VCSDriver {
@@ -0,0 +1,59 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.nio.file.{Files, Path}
+import java.util.Arrays
+import org.junit.Assert._
+import org.junit._
+
+class ArtifactFetcherTest {
+
+  def pom (g :String, a :String, v :String, deps :String*) = {
+    val dxml = deps.map(_.split(":")).map(
+      d => s"<dependency><groupId>${d(0)}</groupId><artifactId>${d(1)}</artifactId>" +
+           s"<version>${d(2)}</version>${if (d.length > 3) s"<scope>${d(3)}</scope>" else ""}" +
+           "</dependency>")
+    s"<project><groupId>$g</groupId><artifactId>$a</artifactId><version>$v</version>" +
+    s"<dependencies>${dxml.mkString}</dependencies></project>"
+  }
+
+  def publish (remote :Path, id :RepoId, pomText :String) {
+    val pomPath = remote.resolve(ArtifactFetcher.repoPath(Pom.pomId(id)))
+    Files.createDirectories(pomPath.getParent)
+    Files.write(pomPath, pomText.getBytes("UTF-8"))
+    Files.write(remote.resolve(ArtifactFetcher.repoPath(id)), Array[Byte](1, 2, 3))
+  }
+
+  @Test def testPrefetch () {
+    val remote = Files.createTempDirectory("remote")
+    val local = Files.createTempDirectory("m2repo")
+    try {
+      val a = new RepoId("test", "a", "1.0", "jar")
+      val b = new RepoId("test", "b", "1.0", "jar")
+      val c = new RepoId("test", "c", "1.0", "jar")
+      publish(remote, a, pom("test", "a", "1.0", "test:b:1.0", "test:c:1.0:test"))
+      publish(remote, b, pom("test", "b", "1.0"))
+      publish(remote, c, pom("test", "c", "1.0"))
+
+      val fetcher = new ArtifactFetcher(local, Arrays.asList(remote.toUri.toString), 4)
+      fetcher.prefetch(Arrays.asList(a))
+      assertTrue(Files.exists(fetcher.localPath(a)))
+      assertTrue(Files.exists(fetcher.localPath(b)))
+      // test scoped depends are not transitive
+      assertFalse(Files.exists(fetcher.localPath(c)))
+
+      // concurrent fetches of the same artifact share one download
+      val f1 = fetcher.fetch(c) ; val f2 = fetcher.fetch(c)
+      assertEquals(f1.join(), f2.join())
+      assertTrue(Files.exists(fetcher.localPath(c)))
+
+      assertNull(fetcher.fetch(new RepoId("test", "missing", "1.0", "jar")).join())
+    } finally {
+      Filez.deleteAll(remote)
+      Filez.deleteAll(local)
+    }
+  }
+}
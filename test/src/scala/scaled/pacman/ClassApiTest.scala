@@ -0,0 +1,39 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.io.ByteArrayOutputStream
+import org.junit.Assert._
+import org.junit._
+
+class ClassApiTest {
+
+  def classBytes (clazz :Class[_]) :Array[Byte] = {
+    val in = clazz.getResourceAsStream(clazz.getSimpleName + ".class")
+    val out = new ByteArrayOutputStream
+    val buf = new Array[Byte](4096)
+    var read = in.read(buf)
+    while (read > 0) { out.write(buf, 0, read) ; read = in.read(buf) }
+    in.close()
+    out.toByteArray
+  }
+
+  @Test def testRead () {
+    val api = ClassApi.read(classBytes(classOf[PackageIndex]))
+    assertEquals("scaled/pacman/PackageIndex", api.name)
+    assertEquals("PackageIndex.java", api.sourceFile)
+    // public members and constant values are part of the signature, private members are not
+    assertTrue(api.signature.contains("classPackage (Ljava/lang/String;)Ljava/lang/String;"))
+    assertTrue(api.signature.contains("PATH Ljava/lang/String; = META-INF/pacman/packages"))
+    assertFalse(api.signature.contains("readJar"))
+  }
+
+  @Test def testStable () {
+    val bytes = classBytes(classOf[Filez])
+    assertEquals(ClassApi.read(bytes).signature, ClassApi.read(bytes).signature)
+    assertNotEquals(ClassApi.read(bytes).signature,
+                    ClassApi.read(classBytes(classOf[PackageIndex])).signature)
+  }
+}
@@ -17,4 +17,14 @@ class ExecTest {
     assertEquals(1, out.size)
     assertEquals("peanut", out.get(0))
   }
+
+  @Test def testCheckedOutput () {
+    assertEquals("peanut", Exec.exec(cwd, "echo", "peanut").output(0, "echo failed").get(0))
+    try {
+      Exec.exec(cwd, "false").output(0, "false failed")
+      fail("expected IOException")
+    } catch {
+      case e :java.io.IOException => assertEquals("false failed", e.getMessage)
+    }
+  }
 }
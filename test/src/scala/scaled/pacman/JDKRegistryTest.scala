@@ -0,0 +1,53 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.nio.file.Paths
+import java.util.Arrays
+import org.junit.Assert._
+import org.junit._
+
+class JDKRegistryTest {
+
+  val jdk8 = new JDK(Paths.get("/jvm/java-8"), "1.8.0_392")
+  val jdk17 = new JDK(Paths.get("/jvm/java-17"), "17.0.9+9")
+  val jdk21 = new JDK(Paths.get("/jvm/java-21"), "21+35")
+  val jdks = new JDKRegistry(Arrays.asList(jdk8, jdk17, jdk21))
+
+  @Test def testOldStyleVersions () {
+    assertEquals(jdk8, jdks.byVersion("1.8"))
+    assertEquals(jdk8, jdks.byVersion("1.8.0"))
+    assertEquals(jdk8, jdks.byVersion("1.8.0_392"))
+    // prefixes which do not end at a component boundary still match, as they always have
+    assertEquals(jdk8, jdks.byVersion("1.8.0_3"))
+    assertEquals(jdk8, jdks.byVersion("8"))
+  }
+
+  @Test def testPlusVersions () {
+    assertEquals(jdk17, jdks.byVersion("17"))
+    assertEquals(jdk17, jdks.byVersion("17.0.9"))
+    assertEquals(jdk17, jdks.byVersion("17.0.9+9"))
+    assertEquals(jdk21, jdks.byVersion("21"))
+    assertEquals(jdk21, jdks.byVersion("21+35"))
+  }
+
+  @Test def testMajorVersions () {
+    assertEquals("8", jdk8.majorVersion)
+    assertEquals("17", jdk17.majorVersion)
+    assertEquals("21", jdk21.majorVersion)
+    assertEquals("11", new JDK(Paths.get("/jvm/java-11"), "11").majorVersion)
+  }
+
+  @Test def testMisses () {
+    assertNull(jdks.byVersion("11"))
+    assertNull(jdks.byVersion("1.7"))
+  }
+
+  @Test def testByName () {
+    assertEquals(jdk17, jdks.byName("java-17"))
+    assertEquals(jdk17, jdks.byName("/jvm/java-17"))
+    assertEquals(jdk21, jdks.byName("21"))
+  }
+}
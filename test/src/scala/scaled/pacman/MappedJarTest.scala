@@ -0,0 +1,52 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.nio.file.Files
+import java.util.jar.JarOutputStream
+import java.util.zip.{CRC32, ZipEntry}
+import org.junit.Assert._
+import org.junit._
+
+class MappedJarTest {
+
+  val data = "peanut butter and jelly".getBytes("UTF-8")
+
+  @Test def testRead () {
+    val jar = Files.createTempFile("mapped", ".jar")
+    try {
+      val out = new JarOutputStream(Files.newOutputStream(jar))
+      out.putNextEntry(new ZipEntry("foo/Deflated.class"))
+      out.write(data)
+      out.closeEntry()
+      val stored = new ZipEntry("foo/Stored.class")
+      val crc = new CRC32 ; crc.update(data)
+      stored.setMethod(ZipEntry.STORED)
+      stored.setSize(data.length)
+      stored.setCompressedSize(data.length)
+      stored.setCrc(crc.getValue)
+      out.putNextEntry(stored)
+      out.write(data)
+      out.closeEntry()
+      out.close()
+
+      val mapped = new MappedJar(jar)
+      for (name <- Seq("foo/Deflated.class", "foo/Stored.class")) {
+        val buf = mapped.read(name)
+        val bytes = new Array[Byte](buf.remaining)
+        buf.get(bytes)
+        assertArrayEquals(data, bytes)
+      }
+      assertNull(mapped.read("foo/Missing.class"))
+
+      // only stored entries are read by readStored
+      assertNotNull(mapped.readStored("foo/Stored.class"))
+      assertNull(mapped.readStored("foo/Deflated.class"))
+      assertNull(mapped.readStored("foo/Missing.class"))
+      assertTrue(mapped.contains("foo/Deflated.class"))
+      assertFalse(mapped.contains("foo/Missing.class"))
+    } finally Files.delete(jar)
+  }
+}
@@ -0,0 +1,34 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.nio.file.Files
+import org.junit.Assert._
+import org.junit._
+
+class PackageIndexTest {
+
+  @Test def testPackageOf () {
+    assertEquals("foo/bar", PackageIndex.classPackage("foo.bar.Baz"))
+    assertEquals("foo/bar", PackageIndex.classPackage("foo.bar.Baz$Inner"))
+    assertEquals("", PackageIndex.classPackage("Baz"))
+    assertEquals("foo/bar", PackageIndex.resourcePackage("foo/bar/baz.properties"))
+    assertEquals("", PackageIndex.resourcePackage("baz.properties"))
+  }
+
+  @Test def testWriteAndScan () {
+    val root = Files.createTempDirectory("pkgindex")
+    try {
+      Files.createDirectories(root.resolve("foo/bar"))
+      Files.write(root.resolve("foo/bar/Baz.class"), Array[Byte](1, 2, 3))
+      Files.createDirectories(root.resolve("foo/empty"))
+      PackageIndex.write(root)
+      val pkgs = PackageIndex.forPath(root)
+      assertTrue(pkgs.contains("foo/bar"))
+      assertFalse(pkgs.contains("foo/empty"))
+      assertTrue(Files.exists(root.resolve(PackageIndex.PATH)))
+    } finally Filez.deleteAll(root)
+  }
+}
@@ -0,0 +1,86 @@
+//
+// Scaled - a scalable editor extensible via JVM languages
+// http://github.com/scaled/scaled/blob/master/LICENSE
+
+package scaled.pacman
+
+import java.nio.file.{Files, Path}
+import org.junit.Assert._
+import org.junit._
+
+class VCSDriverTest {
+
+  def git (dir :Path, args :String*) {
+    Exec.exec(dir, ("git" +: args) :_*).expect(0, "git " + args.mkString(" ") + " failed")
+  }
+
+  def commit (remote :Path, file :String) {
+    Files.write(remote.resolve(file), file.getBytes("UTF-8"))
+    git(remote, "add", file)
+    git(remote, "-c", "user.name=test", "-c", "user.email=test@test", "commit", "-q", "-m", file)
+  }
+
+  @Test def testMirroredCheckout () {
+    val root = Files.createTempDirectory("vcs")
+    try {
+      val remote = root.resolve("remote")
+      Files.createDirectories(remote)
+      git(remote, "init", "-q")
+      commit(remote, "one")
+      val url = remote.toUri
+
+      val driver = new VCSDriver.GitDriver(root.resolve("mirrors"), 0, null)
+      driver.checkout(url, root.resolve("c1"))
+      assertTrue(Files.exists(root.resolve("c1").resolve("one")))
+      assertTrue(driver.exists(url, root.resolve("c1")))
+      assertTrue(Files.exists(driver.mirror(url).resolve("HEAD")))
+
+      // a later checkout sees new commits, and does not depend on the mirror
+      commit(remote, "two")
+      driver.checkout(url, root.resolve("c2"))
+      assertTrue(Files.exists(root.resolve("c2").resolve("two")))
+      assertFalse(Files.exists(root.resolve("c2/.git/objects/info/alternates")))
+
+      // shallow clones still work with a mirror
+      new VCSDriver.GitDriver(root.resolve("mirrors"), 1, null).checkout(url, root.resolve("c3"))
+      assertTrue(Files.exists(root.resolve("c3/.git/shallow")))
+    } finally {
+      Filez.deleteAll(root)
+    }
+  }
+
+  @Test def testGitMeta () {
+    val root = Files.createTempDirectory("vcs")
+    try {
+      val remote = root.resolve("remote")
+      Files.createDirectories(remote)
+      git(remote, "init", "-q")
+      commit(remote, "one")
+      val url = remote.toUri
+      val clone = root.resolve("clone")
+      val driver = new VCSDriver.GitDriver(null, 0, null)
+      driver.checkout(url, clone)
+
+      val meta = GitMeta.read(clone)
+      assertEquals(url.toString, meta.origin)
+      assertEquals(Exec.exec(clone, "git", "rev-parse", "HEAD").output().get(0), meta.head)
+      assertEquals(meta.head, meta.upstream)
+
+      // after fetching a new commit, upstream moves but HEAD does not until we update
+      commit(remote, "two")
+      driver.fetch(clone)
+      val fetched = GitMeta.read(clone)
+      assertNotEquals(fetched.head, fetched.upstream)
+      driver.update(clone)
+      val updated = GitMeta.read(clone)
+      assertEquals(updated.head, updated.upstream)
+
+      // refs are found after being packed as well
+      git(clone, "pack-refs", "--all")
+      assertEquals(updated.head, GitMeta.read(clone).head)
+      assertNull(GitMeta.read(root))
+    } finally {
+      Filez.deleteAll(root)
+    }
+  }
+}